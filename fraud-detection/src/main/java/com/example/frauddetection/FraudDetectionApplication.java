@@ -1,15 +1,43 @@
 package com.example.frauddetection;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import brave.propagation.ExtraFieldPropagation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.EmitterProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -21,12 +49,22 @@ import org.springframework.cloud.sleuth.annotation.ContinueSpan;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @SpringBootApplication
-@EnableConfigurationProperties(FraudProperties.class)
+@EnableConfigurationProperties({ FraudProperties.class, EventBufferProperties.class, EventBatchProperties.class, EventFormatProperties.class })
 public class FraudDetectionApplication {
 
 	public static void main(String[] args) {
@@ -37,6 +75,19 @@ public class FraudDetectionApplication {
 	MeterRegistryCustomizer<MeterRegistry> meterRegistryCustomizer(@Value("${spring.application.name}") String applicationName) {
 		return registry -> registry.config().commonTags("application", applicationName);
 	}
+
+	@Bean
+	FraudRegistry fraudRegistry(FraudProperties fraudProperties, MeterRegistry meterRegistry) {
+		FraudRegistry fraudRegistry = new FraudRegistry(fraudProperties);
+		Gauge.builder("frauds.filter.size", fraudRegistry, registry -> registry.filter().getSizeInBytes())
+				.description("Size of the published fraud bloom filter")
+				.baseUnit("bytes")
+				.register(meterRegistry);
+		Gauge.builder("frauds.filter.false.positive.rate", fraudRegistry, registry -> registry.filter().getFalsePositiveRate())
+				.description("Expected false positive rate of the published fraud bloom filter")
+				.register(meterRegistry);
+		return fraudRegistry;
+	}
 }
 
 @RestController
@@ -48,25 +99,85 @@ class FraudDetectionController {
 
 	private final FraudProperties fraudProperties;
 
+	private final FraudRegistry fraudRegistry;
+
 	private final DistributionSummary distributionSummary;
 
-	FraudDetectionController(UriQueriedEmitter emitter, FraudProperties fraudProperties, MeterRegistry meterRegistry) {
+	FraudDetectionController(UriQueriedEmitter emitter, FraudProperties fraudProperties, FraudRegistry fraudRegistry, MeterRegistry meterRegistry) {
 		this.emitter = emitter;
 		this.fraudProperties = fraudProperties;
+		this.fraudRegistry = fraudRegistry;
 		this.distributionSummary = meterRegistry.summary("frauds");
 	}
 
 	@GetMapping("/frauds")
-	List<String> frauds(@RequestHeader(value = "x-my-special-key", required = false) String value) {
+	ResponseEntity<List<String>> frauds(@RequestHeader(value = "x-my-special-key", required = false) String value,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 		emitter.uriQueriedForPath("/frauds");
-		log.info("\n\nGot fraud request\n\n");
-		log.info("\n\n[baggage] Request from user [{}]\n\n", ExtraFieldPropagation.get("user"));
-		log.info("\n\n[propagation] Got the propagated header [{}]\n\n", value);
-		List<String> frauds = this.fraudProperties.getList();
+		log.info("Got fraud request, [baggage] from user [{}], [propagation] with header [{}]",
+				ExtraFieldPropagation.get("user"), value);
+		FraudIndex index = this.fraudRegistry.index();
+		String eTag = "\"" + index.version() + "\"";
+		if (matches(ifNoneMatch, eTag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+		}
+		List<String> frauds = index.frauds();
 		measure(frauds);
+		return ResponseEntity.ok().eTag(eTag).body(frauds);
+	}
+
+	@GetMapping("/frauds/changes")
+	ResponseEntity<FraudChanges> changes(@RequestParam String since) {
+		emitter.uriQueriedForPath("/frauds/changes");
+		FraudIndex index = this.fraudRegistry.index();
+		if (index.version().equals(since)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag("\"" + index.version() + "\"").build();
+		}
+		return ResponseEntity.ok(this.fraudRegistry.changesSince(since));
+	}
+
+	private boolean matches(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			String trimmed = candidate.trim();
+			if (trimmed.startsWith("W/")) {
+				trimmed = trimmed.substring(2);
+			}
+			if (trimmed.equals(eTag) || trimmed.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@GetMapping("/frauds/{name}")
+	FraudCheck fraud(@PathVariable String name) {
+		// the template, so that the reports group by endpoint and not by every name asked about
+		emitter.uriQueriedForPath("/frauds/{name}");
+		return new FraudCheck(name, this.fraudRegistry.index().contains(name));
+	}
+
+	@PostMapping("/frauds/check")
+	List<String> check(@RequestBody List<String> names) {
+		emitter.uriQueriedForPath("/frauds/check");
+		FraudIndex index = this.fraudRegistry.index();
+		List<String> frauds = new ArrayList<>();
+		for (String name : names) {
+			if (index.contains(name)) {
+				frauds.add(name);
+			}
+		}
 		return frauds;
 	}
 
+	@GetMapping("/filters/frauds")
+	FraudFilter filter() {
+		emitter.uriQueriedForPath("/filters/frauds");
+		return this.fraudRegistry.filter();
+	}
+
 	void measure(List<String> frauds) {
 		this.distributionSummary.record(frauds.size());
 	}
@@ -79,6 +190,14 @@ class FraudProperties {
 	 */
 	private List<String> list;
 
+	/**
+	 * How many previous versions of the list are kept to answer change requests.
+	 * Clients on an older version get the whole list.
+	 */
+	private int historySize = 10;
+
+	private final Filter filter = new Filter();
+
 	public List<String> getList() {
 		return this.list;
 	}
@@ -86,24 +205,427 @@ class FraudProperties {
 	public void setList(List<String> list) {
 		this.list = list;
 	}
+
+	public int getHistorySize() {
+		return this.historySize;
+	}
+
+	public void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	public Filter getFilter() {
+		return this.filter;
+	}
+
+	public static class Filter {
+
+		/**
+		 * False positive rate the published bloom filter is sized for; between 0 and 1,
+		 * exclusive.
+		 */
+		private double falsePositiveRate = 0.01;
+
+		public double getFalsePositiveRate() {
+			return this.falsePositiveRate;
+		}
+
+		public void setFalsePositiveRate(double falsePositiveRate) {
+			this.falsePositiveRate = falsePositiveRate;
+		}
+	}
+}
+
+/**
+ * Answers membership questions against the configured fraud list. The index is
+ * rebuilt whenever the list gets rebound (e.g. after a configuration refresh) and the
+ * previous ones are kept to tell clients what has changed since their version.
+ */
+class FraudRegistry {
+
+	private final FraudProperties fraudProperties;
+
+	private final Deque<FraudIndex> history = new ArrayDeque<>();
+
+	private volatile FraudIndex index;
+
+	FraudRegistry(FraudProperties fraudProperties) {
+		this.fraudProperties = fraudProperties;
+	}
+
+	FraudIndex index() {
+		List<String> list = this.fraudProperties.getList();
+		FraudIndex current = this.index;
+		if (current != null && current.isBuiltFrom(list)) {
+			return current;
+		}
+		synchronized (this) {
+			current = this.index;
+			if (current != null && current.isBuiltFrom(list)) {
+				return current;
+			}
+			if (current != null) {
+				this.history.addFirst(current);
+				while (this.history.size() > this.fraudProperties.getHistorySize()) {
+					this.history.removeLast();
+				}
+			}
+			current = FraudIndex.of(list);
+			this.index = current;
+			return current;
+		}
+	}
+
+	FraudChanges changesSince(String version) {
+		FraudIndex current = index();
+		FraudIndex previous = null;
+		synchronized (this) {
+			for (FraudIndex candidate : this.history) {
+				if (candidate.version().equals(version)) {
+					previous = candidate;
+					break;
+				}
+			}
+		}
+		if (previous == null) {
+			return FraudChanges.full(current);
+		}
+		return current.changesSince(previous);
+	}
+
+	FraudFilter filter() {
+		return index().filter(this.fraudProperties.getFilter().getFalsePositiveRate());
+	}
+}
+
+class FraudIndex {
+
+	private final List<String> source;
+
+	private final Set<String> names;
+
+	private final String version;
+
+	private final Map<String, FraudChanges> changes = new ConcurrentHashMap<>();
+
+	private volatile FraudFilter filter;
+
+	private FraudIndex(List<String> source, Set<String> names, String version) {
+		this.source = source;
+		this.names = names;
+		this.version = version;
+	}
+
+	static FraudIndex of(List<String> frauds) {
+		Collection<String> list = frauds != null ? frauds : Collections.emptyList();
+		Set<String> names = new HashSet<>(Math.max(16, (int) (list.size() / .75f) + 1));
+		for (String fraud : list) {
+			if (fraud != null) {
+				names.add(fraud);
+			}
+		}
+		return new FraudIndex(frauds, names, version(names));
+	}
+
+	// Derived from the content so that every instance with the same list reports the
+	// same version
+	private static String version(Set<String> names) {
+		List<String> sorted = new ArrayList<>(names);
+		Collections.sort(sorted);
+		long hash = 0xcbf29ce484222325L;
+		for (String name : sorted) {
+			hash = BloomFilter.hash(hash, name);
+			hash = BloomFilter.hash(hash, "\n");
+		}
+		return Long.toHexString(hash);
+	}
+
+	boolean isBuiltFrom(List<String> frauds) {
+		return this.source == frauds;
+	}
+
+	String version() {
+		return this.version;
+	}
+
+	List<String> frauds() {
+		return this.source != null ? this.source : Collections.emptyList();
+	}
+
+	Set<String> names() {
+		return this.names;
+	}
+
+	// the diff is the same for every client on the given version, so compute it once
+	FraudChanges changesSince(FraudIndex previous) {
+		return this.changes.computeIfAbsent(previous.version(), version -> {
+			List<String> added = new ArrayList<>();
+			for (String name : this.names) {
+				if (!previous.contains(name)) {
+					added.add(name);
+				}
+			}
+			List<String> removed = new ArrayList<>();
+			for (String name : previous.names()) {
+				if (!contains(name)) {
+					removed.add(name);
+				}
+			}
+			return new FraudChanges(this.version, false, added, removed);
+		});
+	}
+
+	FraudFilter filter(double falsePositiveRate) {
+		FraudFilter current = this.filter;
+		if (current == null || current.getRequestedFalsePositiveRate() != falsePositiveRate) {
+			BloomFilter bloomFilter = BloomFilter.create(this.names.size(), falsePositiveRate);
+			this.names.forEach(bloomFilter::put);
+			current = new FraudFilter(this.version, falsePositiveRate, bloomFilter);
+			this.filter = current;
+		}
+		return current;
+	}
+
+	boolean contains(String name) {
+		return name != null && this.names.contains(name);
+	}
+
+	int size() {
+		return this.names.size();
+	}
+}
+
+/**
+ * Bloom filter over the fraud list as published to the loan services. A negative
+ * answer is definite, a positive one needs to be confirmed with {@code /frauds/{name}}.
+ */
+class FraudFilter {
+
+	private final String version;
+
+	private final double requestedFalsePositiveRate;
+
+	private final BloomFilter bloomFilter;
+
+	private final String bits;
+
+	FraudFilter(String version, double requestedFalsePositiveRate, BloomFilter bloomFilter) {
+		this.version = version;
+		this.requestedFalsePositiveRate = requestedFalsePositiveRate;
+		this.bloomFilter = bloomFilter;
+		this.bits = bloomFilter.encodedBits();
+	}
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public double getFalsePositiveRate() {
+		return this.bloomFilter.expectedFalsePositiveRate();
+	}
+
+	public long getNumBits() {
+		return this.bloomFilter.numBits();
+	}
+
+	public int getNumHashFunctions() {
+		return this.bloomFilter.numHashFunctions();
+	}
+
+	public String getBits() {
+		return this.bits;
+	}
+
+	long getSizeInBytes() {
+		return this.bloomFilter.sizeInBytes();
+	}
+
+	boolean mightContain(String name) {
+		return this.bloomFilter.mightContain(name);
+	}
+
+	double getRequestedFalsePositiveRate() {
+		return this.requestedFalsePositiveRate;
+	}
 }
 
+class BloomFilter {
+
+	private final long[] bits;
+
+	private final long numBits;
+
+	private final int numHashFunctions;
+
+	private int insertions;
+
+	private BloomFilter(long[] bits, long numBits, int numHashFunctions) {
+		this.bits = bits;
+		this.numBits = numBits;
+		this.numHashFunctions = numHashFunctions;
+	}
+
+	static BloomFilter create(int expectedInsertions, double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("False positive rate [" + falsePositiveRate + "] must be between 0 and 1, exclusive");
+		}
+		int n = Math.max(1, expectedInsertions);
+		long numBits = Math.max(Long.SIZE, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+		int numHashFunctions = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+		return new BloomFilter(new long[(int) ((numBits + Long.SIZE - 1) / Long.SIZE)], numBits, numHashFunctions);
+	}
+
+	void put(String name) {
+		long hash1 = hash(name);
+		long hash2 = secondHash(hash1);
+		for (int i = 0; i < this.numHashFunctions; i++) {
+			long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+			this.bits[(int) (index >>> 6)] |= 1L << index;
+		}
+		this.insertions++;
+	}
+
+	boolean mightContain(String name) {
+		long hash1 = hash(name);
+		long hash2 = secondHash(hash1);
+		for (int i = 0; i < this.numHashFunctions; i++) {
+			long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+			if ((this.bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	long numBits() {
+		return this.numBits;
+	}
+
+	int numHashFunctions() {
+		return this.numHashFunctions;
+	}
+
+	long sizeInBytes() {
+		return this.bits.length * (long) Long.BYTES;
+	}
+
+	double expectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) this.numHashFunctions * this.insertions / this.numBits), this.numHashFunctions);
+	}
+
+	String encodedBits() {
+		ByteBuffer buffer = ByteBuffer.allocate(this.bits.length * Long.BYTES);
+		buffer.asLongBuffer().put(this.bits);
+		return Base64.getEncoder().encodeToString(buffer.array());
+	}
+
+	// FNV-1a over the UTF-8 bytes. Clients must hash names exactly the same way, so
+	// don't change it without changing them too
+	static long hash(String name) {
+		return hash(0xcbf29ce484222325L, name);
+	}
+
+	static long hash(long hash, String name) {
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static long secondHash(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash | 1;
+	}
+}
+
+class FraudChanges {
+
+	private final String version;
+
+	private final boolean full;
+
+	private final List<String> added;
+
+	private final List<String> removed;
+
+	FraudChanges(String version, boolean full, List<String> added, List<String> removed) {
+		this.version = version;
+		this.full = full;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	static FraudChanges full(FraudIndex index) {
+		return new FraudChanges(index.version(), true, index.frauds(), Collections.emptyList());
+	}
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @return {@code true} when the client's version is unknown and {@link #getAdded()}
+	 * holds the whole list
+	 */
+	public boolean isFull() {
+		return this.full;
+	}
+
+	public List<String> getAdded() {
+		return this.added;
+	}
+
+	public List<String> getRemoved() {
+		return this.removed;
+	}
+}
+
+class FraudCheck {
+
+	private final String name;
+
+	private final boolean fraud;
+
+	FraudCheck(String name, boolean fraud) {
+		this.name = name;
+		this.fraud = fraud;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean isFraud() {
+		return this.fraud;
+	}
+}
 
 @Configuration
 class Config {
 	@Bean
-	EmitterProcessor<UriQueried> proxyEventEmitterProcessor() {
-		return EmitterProcessor.create();
+	BoundedEventSink<UriQueried> uriQueriedSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		return new BoundedEventSink<>(properties, meterRegistry);
 	}
 
 	@Bean
-	Supplier<Flux<UriQueried>> events(EmitterProcessor<UriQueried> emitterProcessor) {
-		return () -> emitterProcessor;
+	Supplier<Flux<Message<?>>> events(BoundedEventSink<UriQueried> sink, UriQueriedMessages messages) {
+		return () -> messages.toMessages(sink.asFlux());
 	}
 
 	@Bean
-	UriQueriedEmitter uriQueriedEmitter(Environment environment, EmitterProcessor<UriQueried> processor) {
-		return new UriQueriedEmitter(environment, processor);
+	UriQueriedMessages uriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties,
+			EventFormatProperties formatProperties) {
+		return new UriQueriedMessages(objectMapper, properties, formatProperties);
+	}
+
+	@Bean
+	UriQueriedEmitter uriQueriedEmitter(Environment environment, BoundedEventSink<UriQueried> sink) {
+		return new UriQueriedEmitter(environment, sink);
 	}
 }
 
@@ -113,19 +635,20 @@ class UriQueriedEmitter {
 
 	private final Environment environment;
 
-	private final EmitterProcessor<UriQueried> processor;
+	private final BoundedEventSink<UriQueried> sink;
 
-	UriQueriedEmitter(Environment environment, EmitterProcessor<UriQueried> processor) {
+	UriQueriedEmitter(Environment environment, BoundedEventSink<UriQueried> sink) {
 		this.environment = environment;
-		this.processor = processor;
+		this.sink = sink;
 	}
 
 	@ContinueSpan(log = "uri-queried")
 	void uriQueriedForPath(String path) {
 		String uri = "http://localhost:" + environment.getProperty("server.port") + path;
-		UriQueried uriQueried = new UriQueried(environment.getProperty("spring.application.name"), uri);
+		UriQueried uriQueried = new UriQueried(environment.getProperty("spring.application.name"), uri,
+				ExtraFieldPropagation.get("user"));
 		log.info("Sending out [{}]", uriQueried);
-		this.processor.onNext(uriQueried);
+		this.sink.emit(uriQueried);
 	}
 }
 
@@ -137,9 +660,20 @@ class UriQueried {
 
 	private final String uri;
 
+	/**
+	 * The {@code user} baggage of the request. A batch carries the events of many
+	 * requests, so the message's own baggage can't stand in for it.
+	 */
+	private final String user;
+
 	public UriQueried(String applicationName, String uri) {
+		this(applicationName, uri, null);
+	}
+
+	public UriQueried(String applicationName, String uri, String user) {
 		this.applicationName = applicationName;
 		this.uri = uri;
+		this.user = user;
 	}
 
 	public String getApplicationName() {
@@ -154,6 +688,10 @@ class UriQueried {
 		return this.uri;
 	}
 
+	public String getUser() {
+		return this.user;
+	}
+
 	@Override
 	public String toString() {
 		return "UriQueried{" +
@@ -162,4 +700,419 @@ class UriQueried {
 				", uri='" + uri + '\'' +
 				'}';
 	}
-}
\ No newline at end of file
+}
+
+@ConfigurationProperties("events.buffer")
+class EventBufferProperties {
+
+	/**
+	 * Maximum number of events waiting to be sent out to the broker.
+	 */
+	private int size = 1024;
+
+	/**
+	 * What to do with a new event when the buffer is full.
+	 */
+	private Overflow overflow = Overflow.DROP_OLDEST;
+
+	/**
+	 * How long to wait for space in the buffer when the overflow strategy is
+	 * {@code block}. The event gets dropped once the timeout passes. Callers on a
+	 * non-blocking thread, like the Netty event loop, never wait: a full buffer drops
+	 * their event right away, as {@code drop-newest} does.
+	 */
+	private Duration blockTimeout = Duration.ofMillis(10);
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	public Overflow getOverflow() {
+		return this.overflow;
+	}
+
+	public void setOverflow(Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	public Duration getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	public void setBlockTimeout(Duration blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	enum Overflow {
+
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+
+	}
+}
+
+/**
+ * Bounded buffer between the code emitting events and the binder sending them out.
+ * Events are handed to the binder only as fast as it requests them; when it can't
+ * keep up the buffer fills up and the configured overflow strategy kicks in, so a slow
+ * broker never makes the emitting request wait longer than {@code blockTimeout}, and
+ * never makes an event loop wait at all.
+ */
+class BoundedEventSink<T> {
+
+	private final BlockingQueue<T> queue;
+
+	private final EventBufferProperties properties;
+
+	private final Counter dropped;
+
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private final Flux<T> flux;
+
+	private volatile FluxSink<T> sink;
+
+	BoundedEventSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		this.queue = new ArrayBlockingQueue<>(properties.getSize());
+		this.properties = properties;
+		this.dropped = meterRegistry.counter("events.dropped", "overflow", properties.getOverflow().name().toLowerCase(Locale.ROOT));
+		Gauge.builder("events.queue.depth", this.queue, Collection::size)
+				.description("Number of events waiting to be sent out")
+				.register(meterRegistry);
+		this.flux = Flux.create(sink -> {
+			this.sink = sink;
+			sink.onRequest(n -> drain());
+			sink.onDispose(() -> this.sink = null);
+		});
+	}
+
+	Flux<T> asFlux() {
+		return this.flux;
+	}
+
+	/**
+	 * @return {@code false} if the event got dropped
+	 */
+	boolean emit(T event) {
+		boolean accepted = offer(event);
+		drain();
+		return accepted;
+	}
+
+	private boolean offer(T event) {
+		switch (this.properties.getOverflow()) {
+		case BLOCK:
+			// parking a non-blocking thread, e.g. the Netty event loop, would hold up every
+			// request it serves, so those fall through to DROP_NEWEST
+			if (!Schedulers.isInNonBlockingThread()) {
+				try {
+					if (this.queue.offer(event, this.properties.getBlockTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+						return true;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				this.dropped.increment();
+				return false;
+			}
+		case DROP_NEWEST:
+			if (this.queue.offer(event)) {
+				return true;
+			}
+			this.dropped.increment();
+			return false;
+		default:
+			while (!this.queue.offer(event)) {
+				if (this.queue.poll() != null) {
+					this.dropped.increment();
+				}
+			}
+			return true;
+		}
+	}
+
+	// hands queued events over to the binder, at most as many as it has requested
+	private void drain() {
+		if (this.wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			FluxSink<T> sink = this.sink;
+			if (sink != null) {
+				while (sink.requestedFromDownstream() > 0) {
+					T event = this.queue.poll();
+					if (event == null) {
+						break;
+					}
+					sink.next(event);
+				}
+			}
+			missed = this.wip.addAndGet(-missed);
+		}
+		while (missed != 0);
+	}
+}
+
+@ConfigurationProperties("events.batch")
+class EventBatchProperties {
+
+	/**
+	 * Whether events should be grouped into batches, each sent out as a single
+	 * message.
+	 */
+	private boolean enabled = false;
+
+	/**
+	 * Maximum number of events in a batch.
+	 */
+	private int maxSize = 500;
+
+	/**
+	 * Maximum time to wait for a batch to fill up before it's sent out anyway.
+	 */
+	private Duration maxWait = Duration.ofMillis(100);
+
+	/**
+	 * How batches are compressed.
+	 */
+	private Compression compression = Compression.GZIP;
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Duration getMaxWait() {
+		return this.maxWait;
+	}
+
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public Compression getCompression() {
+		return this.compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	enum Compression {
+
+		NONE, GZIP
+
+	}
+}
+
+@ConfigurationProperties("events")
+class EventFormatProperties {
+
+	/**
+	 * Wire format of outgoing events. Consumers pick the matching decoder from the
+	 * message content type, so producers can be switched over one at a time.
+	 */
+	private Format format = Format.JSON;
+
+	public Format getFormat() {
+		return this.format;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	enum Format {
+
+		JSON, BINARY
+
+	}
+}
+
+/**
+ * Turns emitted events into outgoing messages. By default every event is a message of
+ * its own; with batching enabled events are grouped by size and time into a single,
+ * optionally compressed, payload. Payloads are either JSON or the compact
+ * {@link UriQueriedBinaryCodec binary format}.
+ */
+class UriQueriedMessages {
+
+	static final String BATCH_CONTENT_TYPE = "application/vnd.uriqueried.batch+json";
+
+	static final String CONTENT_ENCODING = "x-content-encoding";
+
+	static final String BATCH_SIZE = "x-batch-size";
+
+	static final String PARTITION_KEY = "partitionKey";
+
+	private final ObjectMapper objectMapper;
+
+	private final EventBatchProperties properties;
+
+	private final EventFormatProperties.Format format;
+
+	private final UriQueriedBinaryCodec binaryCodec = new UriQueriedBinaryCodec();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	UriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties, EventFormatProperties formatProperties) {
+		this.objectMapper = objectMapper;
+		this.properties = properties;
+		this.format = formatProperties.getFormat();
+	}
+
+	Flux<Message<?>> toMessages(Flux<UriQueried> events) {
+		if (!this.properties.isEnabled()) {
+			if (this.format == EventFormatProperties.Format.BINARY) {
+				return events.map(event -> binary(Collections.singletonList(event)));
+			}
+			return events.<Message<?>>map(event -> MessageBuilder.withPayload(event)
+					.setHeader(PARTITION_KEY, partitionKey(Collections.singletonList(event)))
+					.build());
+		}
+		return events.bufferTimeout(this.properties.getMaxSize(), this.properties.getMaxWait())
+				.map(this::batch);
+	}
+
+	private Message<?> binary(List<UriQueried> events) {
+		return MessageBuilder.withPayload(this.binaryCodec.encode(events))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.setHeader(PARTITION_KEY, partitionKey(events))
+				.build();
+	}
+
+	private Message<?> batch(List<UriQueried> events) {
+		boolean binary = this.format == EventFormatProperties.Format.BINARY;
+		MessageBuilder<byte[]> builder = MessageBuilder.withPayload(encode(events, binary))
+				.setHeader(MessageHeaders.CONTENT_TYPE, binary ? UriQueriedBinaryCodec.CONTENT_TYPE : BATCH_CONTENT_TYPE)
+				.setHeader(BATCH_SIZE, events.size())
+				.setHeader(PARTITION_KEY, partitionKey(events));
+		if (this.properties.getCompression() == EventBatchProperties.Compression.GZIP) {
+			builder.setHeader(CONTENT_ENCODING, "gzip");
+		}
+		return builder.build();
+	}
+
+	// Single events are keyed by application and URI. A batch mixes the URIs of this
+	// application; keyed by the application alone all of its batches would land on a
+	// single partition, and so with a single consumer, hence the running batch number.
+	private String partitionKey(List<UriQueried> events) {
+		UriQueried first = events.get(0);
+		return first.getApplicationName() + ":" + (events.size() == 1 ? first.getUri() : this.batches.incrementAndGet());
+	}
+
+	private byte[] encode(List<UriQueried> events, boolean binary) {
+		try {
+			byte[] payload = binary ? this.binaryCodec.encode(events) : this.objectMapper.writeValueAsBytes(events);
+			if (this.properties.getCompression() != EventBatchProperties.Compression.GZIP) {
+				return payload;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+				gzip.write(payload);
+			}
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
+
+/**
+ * Compact binary encoding of {@link UriQueried} events. A payload holds one or more
+ * events:
+ * <pre>
+ * version         byte (2)
+ * event count     varint
+ * dictionary size varint, followed by that many strings
+ * per event       application name (dictionary index, varint)
+ *                 timestamp (zig-zag varint delta from the previous event)
+ *                 URI origin, i.e. scheme and authority (dictionary index, varint)
+ *                 rest of the URI (string)
+ *                 user (dictionary index + 1, varint; 0 when there's none)
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Application names and URI
+ * origins repeat on nearly every event, so each is written once per payload.
+ */
+class UriQueriedBinaryCodec {
+
+	static final String CONTENT_TYPE = "application/vnd.uriqueried+binary";
+
+	static final int VERSION = 2;
+
+	byte[] encode(List<UriQueried> events) {
+		Map<String, Integer> dictionary = new LinkedHashMap<>();
+		for (UriQueried event : events) {
+			dictionary.putIfAbsent(nullToEmpty(event.getApplicationName()), dictionary.size());
+			dictionary.putIfAbsent(origin(nullToEmpty(event.getUri())), dictionary.size());
+			if (event.getUser() != null) {
+				dictionary.putIfAbsent(event.getUser(), dictionary.size());
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + events.size() * 16);
+		out.write(VERSION);
+		writeVarint(out, events.size());
+		writeVarint(out, dictionary.size());
+		dictionary.keySet().forEach(entry -> writeString(out, entry));
+		long previous = 0;
+		for (UriQueried event : events) {
+			String uri = nullToEmpty(event.getUri());
+			String origin = origin(uri);
+			writeVarint(out, dictionary.get(nullToEmpty(event.getApplicationName())));
+			writeVarint(out, zigZag(event.getTimestamp() - previous));
+			writeVarint(out, dictionary.get(origin));
+			writeString(out, uri.substring(origin.length()));
+			writeVarint(out, event.getUser() != null ? dictionary.get(event.getUser()) + 1 : 0);
+			previous = event.getTimestamp();
+		}
+		return out.toByteArray();
+	}
+
+	static String origin(String uri) {
+		int scheme = uri.indexOf("://");
+		if (scheme < 0) {
+			return "";
+		}
+		int path = uri.indexOf('/', scheme + 3);
+		return path < 0 ? uri : uri.substring(0, path);
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
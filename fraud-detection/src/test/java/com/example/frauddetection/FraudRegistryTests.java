@@ -0,0 +1,105 @@
+package com.example.frauddetection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.assertj.core.api.BDDAssertions.thenThrownBy;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class FraudRegistryTests {
+
+	// in the tests of the loan services too
+	static final List<String> PINNED_FRAUDS = Arrays.asList("olga", "oleg", "żółw", "Ali Baba", "fraud-1", "fraud-2",
+			"fraud-3", "fraud-4", "fraud-5", "fraud-6");
+
+	@Test
+	void should_rebuild_the_index_when_the_list_gets_rebound() {
+		FraudProperties properties = new FraudProperties();
+		properties.setList(Arrays.asList("olga", "oleg"));
+		FraudRegistry registry = new FraudRegistry(properties);
+		FraudIndex index = registry.index();
+
+		then(index.contains("olga")).isTrue();
+		then(registry.index()).isSameAs(index);
+
+		properties.setList(Arrays.asList("marcin"));
+
+		then(registry.index().contains("olga")).isFalse();
+		then(registry.index().contains("marcin")).isTrue();
+	}
+
+	@Test
+	void should_derive_the_version_from_the_content() {
+		then(FraudIndex.of(Arrays.asList("olga", "oleg")).version())
+				.isEqualTo(FraudIndex.of(Arrays.asList("oleg", "olga")).version())
+				.isNotEqualTo(FraudIndex.of(Arrays.asList("olga")).version());
+	}
+
+	@Test
+	void should_publish_a_filter_that_contains_every_fraud() {
+		List<String> frauds = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++) {
+			frauds.add("fraud-" + i);
+		}
+		FraudProperties properties = new FraudProperties();
+		properties.setList(frauds);
+
+		FraudFilter filter = new FraudRegistry(properties).filter();
+
+		then(frauds).allMatch(filter::mightContain);
+		then(filter.getNumHashFunctions()).isEqualTo(7);
+		then(filter.getFalsePositiveRate()).isLessThan(0.011);
+		then(filter.getVersion()).isEqualTo(FraudIndex.of(frauds).version());
+	}
+
+	@Test
+	void should_publish_a_filter_with_the_requested_false_positive_rate() {
+		List<String> frauds = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++) {
+			frauds.add("fraud-" + i);
+		}
+		FraudFilter filter = FraudIndex.of(frauds).filter(0.01);
+
+		int falsePositives = 0;
+		int probes = 100_000;
+		for (int i = 0; i < probes; i++) {
+			if (filter.mightContain("honest-" + i)) {
+				falsePositives++;
+			}
+		}
+
+		then((double) falsePositives / probes).isLessThan(0.015);
+	}
+
+	@Test
+	void should_reject_false_positive_rates_outside_of_0_and_1() {
+		FraudIndex index = FraudIndex.of(PINNED_FRAUDS);
+
+		thenThrownBy(() -> index.filter(0)).isInstanceOf(IllegalArgumentException.class);
+		thenThrownBy(() -> index.filter(1)).isInstanceOf(IllegalArgumentException.class);
+		thenThrownBy(() -> index.filter(Double.NaN)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	/**
+	 * The loan services decode the published bits and hash names on their own. Their
+	 * tests pin the same filter, so a change of the hashing on either side breaks one
+	 * of them.
+	 */
+	@Test
+	void should_publish_the_filter_the_loan_services_expect() {
+		FraudFilter filter = FraudIndex.of(PINNED_FRAUDS).filter(0.01);
+
+		then(filter.getBits()).isEqualTo("q5ugVzlXOsYAAAAATPTnXA==");
+		then(filter.getNumBits()).isEqualTo(96);
+		then(filter.getNumHashFunctions()).isEqualTo(7);
+		then(BloomFilter.hash("olga")).isEqualTo(1810465417450696006L);
+		then(BloomFilter.hash("żółw")).isEqualTo(-3610421115257915514L);
+	}
+}
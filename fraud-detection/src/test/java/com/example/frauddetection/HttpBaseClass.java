@@ -16,8 +16,9 @@ import static org.mockito.Mockito.mock;
 public abstract class HttpBaseClass {
 	@BeforeEach
 	void setup() {
+		FraudProperties fraudProperties = fraudProperties();
 		RestAssuredMockMvc.standaloneSetup(new FraudDetectionController(mock(UriQueriedEmitter.class),
-				fraudProperties(), mock(MeterRegistry.class)) {
+				fraudProperties, new FraudRegistry(fraudProperties), mock(MeterRegistry.class)) {
 			@Override
 			void measure(List<String> list) {
 			}
@@ -20,7 +20,7 @@ public abstract class MessagingBaseClass {
 	FraudDetectionController controller;
 
 	public void frauds() {
-		this.controller.frauds("");
+		this.controller.frauds("", null);
 	}
 
 	@Configuration
@@ -0,0 +1,23 @@
+import org.springframework.cloud.contract.spec.Contract
+
+Contract.make {
+
+	description("Confirms that a name is on the list of frauds")
+
+	request {
+		method(GET())
+		url("/frauds/olga")
+	}
+
+	response {
+		status(OK())
+		headers {
+			contentType(applicationJson())
+		}
+		body([
+				name: "olga",
+				fraud: true
+		])
+	}
+
+}
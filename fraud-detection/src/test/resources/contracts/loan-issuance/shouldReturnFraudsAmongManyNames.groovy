@@ -0,0 +1,24 @@
+import org.springframework.cloud.contract.spec.Contract
+
+Contract.make {
+
+	description("Returns those of the given names that are on the list of frauds")
+
+	request {
+		method(POST())
+		url("/frauds/check")
+		headers {
+			contentType(applicationJson())
+		}
+		body(["olga", "marcin", "oleg"])
+	}
+
+	response {
+		status(OK())
+		headers {
+			contentType(applicationJson())
+		}
+		body(["olga", "oleg"])
+	}
+
+}
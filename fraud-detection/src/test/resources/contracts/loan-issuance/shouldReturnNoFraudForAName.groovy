@@ -0,0 +1,23 @@
+import org.springframework.cloud.contract.spec.Contract
+
+Contract.make {
+
+	description("Confirms that a name is not on the list of frauds")
+
+	request {
+		method(GET())
+		url("/frauds/marcin")
+	}
+
+	response {
+		status(OK())
+		headers {
+			contentType(applicationJson())
+		}
+		body([
+				name: "marcin",
+				fraud: false
+		])
+	}
+
+}
@@ -0,0 +1,29 @@
+import org.springframework.cloud.contract.spec.Contract
+
+Contract.make {
+
+	description("Returns the whole list of frauds when asked for changes since an unknown version")
+
+	request {
+		method(GET())
+		url("/frauds/changes") {
+			queryParameters {
+				parameter("since", "unknown")
+			}
+		}
+	}
+
+	response {
+		status(OK())
+		headers {
+			contentType(applicationJson())
+		}
+		body([
+				version: $(anyNonBlankString()),
+				full: true,
+				added: ["olga", "oleg"],
+				removed: []
+		])
+	}
+
+}
@@ -1,35 +1,119 @@
 package com.example.gateway;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import brave.CurrentSpanCustomizer;
 import brave.Span;
 import brave.Tracer;
 import brave.propagation.ExtraFieldPropagation;
+import brave.propagation.TraceContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.EmitterProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
 
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.gateway.config.GlobalCorsProperties;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.handler.FilteringWebHandler;
+import org.springframework.cloud.gateway.handler.RoutePredicateHandlerMapping;
+import org.springframework.cloud.gateway.handler.predicate.PredicateDefinition;
+import org.springframework.cloud.gateway.filter.NettyWriteResponseFilter;
+import org.springframework.cloud.gateway.filter.OrderedGatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.filter.ratelimit.AbstractRateLimiter;
+import org.springframework.cloud.gateway.filter.ratelimit.KeyResolver;
+import org.springframework.cloud.gateway.route.CompositeRouteDefinitionLocator;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.route.RouteDefinition;
+import org.springframework.cloud.gateway.route.RouteDefinitionLocator;
 import org.springframework.cloud.gateway.route.RouteLocator;
 import org.springframework.cloud.gateway.route.builder.RouteLocatorBuilder;
+import org.springframework.cloud.gateway.support.ConfigurationService;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.Ordered;
 import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 import org.springframework.web.server.ServerWebExchange;
 
 @SpringBootApplication
+@EnableConfigurationProperties({ EventBufferProperties.class, EventBatchProperties.class, EventFormatProperties.class,
+		EventDispatchProperties.class, RateLimiterProperties.class })
 public class GatewayApplication {
 
 	public static void main(String[] args) {
@@ -47,9 +131,11 @@ public class GatewayApplication {
 class CodeConfiguration {
 
 	@Bean
-	RouteLocator myRoute(RouteLocatorBuilder builder,  @Value("${stripe.auth.header:sk_test_4eC39HqLyjWDarjtT1zdp7dc}") String authorizationHeader) {
+	RouteLocator myRoute(RouteLocatorBuilder builder,  @Value("${stripe.auth.header:sk_test_4eC39HqLyjWDarjtT1zdp7dc}") String authorizationHeader,
+			LocalRateLimiter rateLimiter, KeyResolver userKeyResolver,
+			ConcurrencyLimitGatewayFilterFactory concurrencyLimit) {
 		return builder.routes()
-				.route(s ->
+				.route("loan", s ->
 					// localhost:9083/apply/loan
 					//  strip prefix 1
 					// circuit breaker
@@ -57,18 +143,21 @@ class CodeConfiguration {
 					s.path("/apply/**")
 							.filters(g ->
 									g.stripPrefix(1)
+							.requestRateLimiter(config -> config.setRateLimiter(rateLimiter).setKeyResolver(userKeyResolver))
+							.filter(concurrencyLimit.apply(config -> config.setMaxLimit(100)))
 							.circuitBreaker(config -> config.setName("loan")))
 					.uri("lb://loan-issuance")
 				)
 				// localhost:9083/credit/charges
 					// authorization
 				// https://api.stripe.com/v1/charges
-				.route(s ->
+				.route("credit", s ->
 					s.path("/credit/**")
 						.filters(g ->
 								g.stripPrefix(1)
 								.prefixPath("/v1")
 								.addRequestHeader("Authorization", "Bearer " + authorizationHeader)
+								.filter(concurrencyLimit.apply(config -> config.setMaxLimit(50)))
 								.circuitBreaker(config -> config.setName("credit"))
 						)
 						.uri("https://api.stripe.com/")
@@ -87,18 +176,70 @@ class Common {
 	}
 
 	@Bean
-	EmitterProcessor<UriQueried> proxyEventEmitterProcessor() {
-		return EmitterProcessor.create();
+	@ConditionalOnProperty(value = "routes.index.enabled", matchIfMissing = true)
+	static IndexedRoutesPostProcessor indexedRoutesPostProcessor(ObjectProvider<FilteringWebHandler> webHandler,
+			ObjectProvider<RouteLocator> routeLocator, ObjectProvider<GlobalCorsProperties> globalCorsProperties,
+			Environment environment) {
+		return new IndexedRoutesPostProcessor(webHandler, routeLocator, globalCorsProperties, environment);
 	}
 
 	@Bean
-	Supplier<Flux<UriQueried>> proxyEvents(EmitterProcessor<UriQueried> emitterProcessor) {
-		return () -> emitterProcessor;
+	CacheResponseGatewayFilterFactory cacheResponseGatewayFilterFactory(MeterRegistry meterRegistry) {
+		return new CacheResponseGatewayFilterFactory(meterRegistry);
 	}
 
 	@Bean
-	UriQueriedEmitter uriQueriedEmitter(Environment environment, Tracer tracer, CurrentSpanCustomizer currentSpanCustomizer, EmitterProcessor<UriQueried> processor) {
-		return new UriQueriedEmitter(environment, processor, tracer, currentSpanCustomizer);
+	ResponseCaptureFilter responseCaptureFilter() {
+		return new ResponseCaptureFilter();
+	}
+
+	@Bean
+	ConcurrencyLimitGatewayFilterFactory concurrencyLimitGatewayFilterFactory(MeterRegistry meterRegistry) {
+		return new ConcurrencyLimitGatewayFilterFactory(meterRegistry);
+	}
+
+	@Bean
+	LocalRateLimiter localRateLimiter(RateLimiterProperties properties, ConfigurationService configurationService,
+			MeterRegistry meterRegistry) {
+		return new LocalRateLimiter(properties, configurationService, meterRegistry);
+	}
+
+	@Bean
+	@Primary
+	KeyResolver userKeyResolver() {
+		return KeyResolvers.user();
+	}
+
+	@Bean
+	KeyResolver ipKeyResolver() {
+		return KeyResolvers.ip();
+	}
+
+	@Bean
+	KeyResolver routeKeyResolver() {
+		return KeyResolvers.route();
+	}
+
+	@Bean
+	BoundedEventSink<UriQueried> uriQueriedSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		return new BoundedEventSink<>(properties, meterRegistry);
+	}
+
+	@Bean
+	Supplier<Flux<Message<?>>> proxyEvents(BoundedEventSink<UriQueried> sink, UriQueriedMessages messages) {
+		return () -> messages.toMessages(sink.asFlux());
+	}
+
+	@Bean
+	UriQueriedMessages uriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties,
+			EventFormatProperties formatProperties) {
+		return new UriQueriedMessages(objectMapper, properties, formatProperties);
+	}
+
+	@Bean
+	UriQueriedEmitter uriQueriedEmitter(Environment environment, Tracer tracer, CurrentSpanCustomizer currentSpanCustomizer,
+			BoundedEventSink<UriQueried> sink, EventDispatchProperties properties, MeterRegistry meterRegistry) {
+		return new UriQueriedEmitter(environment, sink, tracer, currentSpanCustomizer, properties, meterRegistry);
 	}
 }
 
@@ -113,7 +254,11 @@ class SendAMessageFilter implements GlobalFilter, Ordered {
 	@Override
 	public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
 		String uri = exchange.getRequest().getURI().toString();
-		return chain.filter(exchange).doOnSuccessOrError((aVoid, throwable) -> this.emitter.uriQueriedForUri(uri));
+		Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+		String routeId = route != null ? route.getId() : null;
+		TraceContext parent = this.emitter.currentContext();
+		return chain.filter(exchange)
+				.doOnSuccessOrError((aVoid, throwable) -> this.emitter.uriQueriedForUri(routeId, uri, parent));
 	}
 
 	@Override
@@ -123,40 +268,200 @@ class SendAMessageFilter implements GlobalFilter, Ordered {
 }
 
 
-class UriQueriedEmitter {
+/**
+ * Sends out an event, in a span of its own, for every proxied request. The request
+ * path only samples the request and puts it on a bounded queue, as this runs on the
+ * Netty event loop; a dedicated thread drains the queue in batches and does the
+ * tracing, logging and emitting. Requests are dropped, and counted, when the queue
+ * is full.
+ */
+class UriQueriedEmitter implements DisposableBean {
 
 	private static final Logger log = LoggerFactory.getLogger(UriQueriedEmitter.class);
 
 	private final Environment environment;
 
-	private final EmitterProcessor<UriQueried> processor;
+	private final BoundedEventSink<UriQueried> sink;
 
 	private final Tracer tracer;
 
 	private final CurrentSpanCustomizer customizer;
 
-	UriQueriedEmitter(Environment environment, EmitterProcessor<UriQueried> processor, Tracer tracer, CurrentSpanCustomizer customizer) {
+	private final EventDispatchProperties properties;
+
+	private final BlockingQueue<QueriedUri> queue;
+
+	private final Counter dropped;
+
+	private final Counter sampledOut;
+
+	private final DistributionSummary batchSize;
+
+	private final Thread worker;
+
+	private volatile boolean running = true;
+
+	UriQueriedEmitter(Environment environment, BoundedEventSink<UriQueried> sink, Tracer tracer, CurrentSpanCustomizer customizer,
+			EventDispatchProperties properties, MeterRegistry meterRegistry) {
 		this.environment = environment;
-		this.processor = processor;
+		this.sink = sink;
 		this.tracer = tracer;
 		this.customizer = customizer;
+		this.properties = properties;
+		this.queue = new ArrayBlockingQueue<>(properties.getQueueSize());
+		this.dropped = meterRegistry.counter("events.dispatch.dropped");
+		this.sampledOut = meterRegistry.counter("events.dispatch.sampled.out");
+		this.batchSize = meterRegistry.summary("events.dispatch.batch.size");
+		Gauge.builder("events.dispatch.queued", this.queue, Collection::size)
+				.description("Proxied requests waiting to be turned into events")
+				.register(meterRegistry);
+		this.worker = new Thread(this::drain, "uri-queried-emitter");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * The trace context to parent the event's span on; to be called on the request
+	 * path, where the request's span is in scope.
+	 */
+	TraceContext currentContext() {
+		Span span = this.tracer.currentSpan();
+		return span != null ? span.context() : null;
+	}
+
+	/**
+	 * Called on the event loop, so it must not block nor do any real work.
+	 */
+	void uriQueriedForUri(String routeId, String uri, TraceContext parent) {
+		double rate = this.properties.getRouteSampleRates().getOrDefault(routeId, this.properties.getSampleRate());
+		if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) {
+			this.sampledOut.increment();
+			return;
+		}
+		if (!this.queue.offer(new QueriedUri(uri, parent))) {
+			this.dropped.increment();
+		}
 	}
 
-	void uriQueriedForUri(String uri) {
-		Span span = tracer.nextSpan().name("my-custom-span").start();
-		log.info("After span creation");
-		try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
+	private void drain() {
+		List<QueriedUri> batch = new ArrayList<>(this.properties.getMaxBatch());
+		while (this.running) {
+			try {
+				QueriedUri first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				this.queue.drainTo(batch, this.properties.getMaxBatch() - 1);
+				this.batchSize.record(batch.size());
+				for (QueriedUri queried : batch) {
+					send(queried.uri, queried.parent);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (RuntimeException e) {
+				log.warn("Failed to send out [{}] queried URIs", batch.size(), e);
+			}
+			finally {
+				batch.clear();
+			}
+		}
+	}
+
+	void send(String uri, TraceContext parent) {
+		Span span = (parent != null ? this.tracer.newChild(parent) : this.tracer.nextSpan()).name("my-custom-span").start();
+		try (Tracer.SpanInScope ws = this.tracer.withSpanInScope(span)) {
 			// Show current span and context retrieval
 			// tracer.currentSpan().context().traceId();
 			this.customizer.annotate("my-annotation").name("changed-name").tag("key", "value");
-			UriQueried uriQueried = new UriQueried(environment.getProperty("spring.application.name"), uri);
+			UriQueried uriQueried = new UriQueried(this.environment.getProperty("spring.application.name"), uri,
+				ExtraFieldPropagation.get("user"));
 			log.info("Sending out [{}]", uriQueried);
-			this.processor.onNext(uriQueried);
-		} finally {
-			log.info("Just before finish");
+			this.sink.emit(uriQueried);
+		}
+		finally {
 			span.finish();
 		}
 	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		this.running = false;
+		this.worker.interrupt();
+		this.worker.join(TimeUnit.SECONDS.toMillis(1));
+	}
+
+	private static final class QueriedUri {
+
+		private final String uri;
+
+		private final TraceContext parent;
+
+		private QueriedUri(String uri, TraceContext parent) {
+			this.uri = uri;
+			this.parent = parent;
+		}
+	}
+}
+
+@ConfigurationProperties("events.dispatch")
+class EventDispatchProperties {
+
+	/**
+	 * Maximum number of proxied requests waiting to be turned into events. Beyond that
+	 * they are dropped.
+	 */
+	private int queueSize = 4096;
+
+	/**
+	 * Maximum number of requests handled in one go by the dispatching thread.
+	 */
+	private int maxBatch = 256;
+
+	/**
+	 * Share of proxied requests, between 0 and 1, that result in an event.
+	 */
+	private double sampleRate = 1.0;
+
+	/**
+	 * Sample rates of individual routes, by route id, overriding the default one.
+	 */
+	private Map<String, Double> routeSampleRates = new HashMap<>();
+
+	public int getQueueSize() {
+		return this.queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getMaxBatch() {
+		return this.maxBatch;
+	}
+
+	public void setMaxBatch(int maxBatch) {
+		this.maxBatch = maxBatch;
+	}
+
+	public double getSampleRate() {
+		return this.sampleRate;
+	}
+
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public Map<String, Double> getRouteSampleRates() {
+		return this.routeSampleRates;
+	}
+
+	public void setRouteSampleRates(Map<String, Double> routeSampleRates) {
+		this.routeSampleRates = routeSampleRates;
+	}
 }
 
 class UriQueried {
@@ -167,9 +472,20 @@ class UriQueried {
 
 	private final String uri;
 
+	/**
+	 * The {@code user} baggage of the request. A batch carries the events of many
+	 * requests, so the message's own baggage can't stand in for it.
+	 */
+	private final String user;
+
 	public UriQueried(String applicationName, String uri) {
+		this(applicationName, uri, null);
+	}
+
+	public UriQueried(String applicationName, String uri, String user) {
 		this.applicationName = applicationName;
 		this.uri = uri;
+		this.user = user;
 	}
 
 	public String getApplicationName() {
@@ -183,6 +499,10 @@ class UriQueried {
 	public String getUri() {
 		return this.uri;
 	}
+
+	public String getUser() {
+		return this.user;
+	}
 }
 
 @Component
@@ -196,4 +516,1836 @@ class MyBaggageFilter implements GlobalFilter {
 		log.info("Set the propagation value");
 		return chain.filter(exchange);
 	}
-}
\ No newline at end of file
+}
+
+@ConfigurationProperties("events.buffer")
+class EventBufferProperties {
+
+	/**
+	 * Maximum number of events waiting to be sent out to the broker.
+	 */
+	private int size = 1024;
+
+	/**
+	 * What to do with a new event when the buffer is full.
+	 */
+	private Overflow overflow = Overflow.DROP_OLDEST;
+
+	/**
+	 * How long to wait for space in the buffer when the overflow strategy is
+	 * {@code block}. The event gets dropped once the timeout passes. Callers on a
+	 * non-blocking thread, like the Netty event loop, never wait: a full buffer drops
+	 * their event right away, as {@code drop-newest} does.
+	 */
+	private Duration blockTimeout = Duration.ofMillis(10);
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	public Overflow getOverflow() {
+		return this.overflow;
+	}
+
+	public void setOverflow(Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	public Duration getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	public void setBlockTimeout(Duration blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	enum Overflow {
+
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+
+	}
+}
+
+/**
+ * Bounded buffer between the code emitting events and the binder sending them out.
+ * Events are handed to the binder only as fast as it requests them; when it can't
+ * keep up the buffer fills up and the configured overflow strategy kicks in, so a slow
+ * broker never makes the emitting request wait longer than {@code blockTimeout}, and
+ * never makes an event loop wait at all.
+ */
+class BoundedEventSink<T> {
+
+	private final BlockingQueue<T> queue;
+
+	private final EventBufferProperties properties;
+
+	private final Counter dropped;
+
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private final Flux<T> flux;
+
+	private volatile FluxSink<T> sink;
+
+	BoundedEventSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		this.queue = new ArrayBlockingQueue<>(properties.getSize());
+		this.properties = properties;
+		this.dropped = meterRegistry.counter("events.dropped", "overflow", properties.getOverflow().name().toLowerCase(Locale.ROOT));
+		Gauge.builder("events.queue.depth", this.queue, Collection::size)
+				.description("Number of events waiting to be sent out")
+				.register(meterRegistry);
+		this.flux = Flux.create(sink -> {
+			this.sink = sink;
+			sink.onRequest(n -> drain());
+			sink.onDispose(() -> this.sink = null);
+		});
+	}
+
+	Flux<T> asFlux() {
+		return this.flux;
+	}
+
+	/**
+	 * @return {@code false} if the event got dropped
+	 */
+	boolean emit(T event) {
+		boolean accepted = offer(event);
+		drain();
+		return accepted;
+	}
+
+	private boolean offer(T event) {
+		switch (this.properties.getOverflow()) {
+		case BLOCK:
+			// parking a non-blocking thread, e.g. the Netty event loop, would hold up every
+			// request it serves, so those fall through to DROP_NEWEST
+			if (!Schedulers.isInNonBlockingThread()) {
+				try {
+					if (this.queue.offer(event, this.properties.getBlockTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+						return true;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				this.dropped.increment();
+				return false;
+			}
+		case DROP_NEWEST:
+			if (this.queue.offer(event)) {
+				return true;
+			}
+			this.dropped.increment();
+			return false;
+		default:
+			while (!this.queue.offer(event)) {
+				if (this.queue.poll() != null) {
+					this.dropped.increment();
+				}
+			}
+			return true;
+		}
+	}
+
+	// hands queued events over to the binder, at most as many as it has requested
+	private void drain() {
+		if (this.wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			FluxSink<T> sink = this.sink;
+			if (sink != null) {
+				while (sink.requestedFromDownstream() > 0) {
+					T event = this.queue.poll();
+					if (event == null) {
+						break;
+					}
+					sink.next(event);
+				}
+			}
+			missed = this.wip.addAndGet(-missed);
+		}
+		while (missed != 0);
+	}
+}
+
+@ConfigurationProperties("events.batch")
+class EventBatchProperties {
+
+	/**
+	 * Whether events should be grouped into batches, each sent out as a single
+	 * message.
+	 */
+	private boolean enabled = false;
+
+	/**
+	 * Maximum number of events in a batch.
+	 */
+	private int maxSize = 500;
+
+	/**
+	 * Maximum time to wait for a batch to fill up before it's sent out anyway.
+	 */
+	private Duration maxWait = Duration.ofMillis(100);
+
+	/**
+	 * How batches are compressed.
+	 */
+	private Compression compression = Compression.GZIP;
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Duration getMaxWait() {
+		return this.maxWait;
+	}
+
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public Compression getCompression() {
+		return this.compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	enum Compression {
+
+		NONE, GZIP
+
+	}
+}
+
+@ConfigurationProperties("events")
+class EventFormatProperties {
+
+	/**
+	 * Wire format of outgoing events. Consumers pick the matching decoder from the
+	 * message content type, so producers can be switched over one at a time.
+	 */
+	private Format format = Format.JSON;
+
+	public Format getFormat() {
+		return this.format;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	enum Format {
+
+		JSON, BINARY
+
+	}
+}
+
+/**
+ * Turns emitted events into outgoing messages. By default every event is a message of
+ * its own; with batching enabled events are grouped by size and time into a single,
+ * optionally compressed, payload. Payloads are either JSON or the compact
+ * {@link UriQueriedBinaryCodec binary format}.
+ */
+class UriQueriedMessages {
+
+	static final String BATCH_CONTENT_TYPE = "application/vnd.uriqueried.batch+json";
+
+	static final String CONTENT_ENCODING = "x-content-encoding";
+
+	static final String BATCH_SIZE = "x-batch-size";
+
+	static final String PARTITION_KEY = "partitionKey";
+
+	private final ObjectMapper objectMapper;
+
+	private final EventBatchProperties properties;
+
+	private final EventFormatProperties.Format format;
+
+	private final UriQueriedBinaryCodec binaryCodec = new UriQueriedBinaryCodec();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	UriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties, EventFormatProperties formatProperties) {
+		this.objectMapper = objectMapper;
+		this.properties = properties;
+		this.format = formatProperties.getFormat();
+	}
+
+	Flux<Message<?>> toMessages(Flux<UriQueried> events) {
+		if (!this.properties.isEnabled()) {
+			if (this.format == EventFormatProperties.Format.BINARY) {
+				return events.map(event -> binary(Collections.singletonList(event)));
+			}
+			return events.<Message<?>>map(event -> MessageBuilder.withPayload(event)
+					.setHeader(PARTITION_KEY, partitionKey(Collections.singletonList(event)))
+					.build());
+		}
+		return events.bufferTimeout(this.properties.getMaxSize(), this.properties.getMaxWait())
+				.map(this::batch);
+	}
+
+	private Message<?> binary(List<UriQueried> events) {
+		return MessageBuilder.withPayload(this.binaryCodec.encode(events))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.setHeader(PARTITION_KEY, partitionKey(events))
+				.build();
+	}
+
+	private Message<?> batch(List<UriQueried> events) {
+		boolean binary = this.format == EventFormatProperties.Format.BINARY;
+		MessageBuilder<byte[]> builder = MessageBuilder.withPayload(encode(events, binary))
+				.setHeader(MessageHeaders.CONTENT_TYPE, binary ? UriQueriedBinaryCodec.CONTENT_TYPE : BATCH_CONTENT_TYPE)
+				.setHeader(BATCH_SIZE, events.size())
+				.setHeader(PARTITION_KEY, partitionKey(events));
+		if (this.properties.getCompression() == EventBatchProperties.Compression.GZIP) {
+			builder.setHeader(CONTENT_ENCODING, "gzip");
+		}
+		return builder.build();
+	}
+
+	// Single events are keyed by application and URI. A batch mixes the URIs of this
+	// application; keyed by the application alone all of its batches would land on a
+	// single partition, and so with a single consumer, hence the running batch number.
+	private String partitionKey(List<UriQueried> events) {
+		UriQueried first = events.get(0);
+		return first.getApplicationName() + ":" + (events.size() == 1 ? first.getUri() : this.batches.incrementAndGet());
+	}
+
+	private byte[] encode(List<UriQueried> events, boolean binary) {
+		try {
+			byte[] payload = binary ? this.binaryCodec.encode(events) : this.objectMapper.writeValueAsBytes(events);
+			if (this.properties.getCompression() != EventBatchProperties.Compression.GZIP) {
+				return payload;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+				gzip.write(payload);
+			}
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
+
+/**
+ * Compact binary encoding of {@link UriQueried} events. A payload holds one or more
+ * events:
+ * <pre>
+ * version         byte (2)
+ * event count     varint
+ * dictionary size varint, followed by that many strings
+ * per event       application name (dictionary index, varint)
+ *                 timestamp (zig-zag varint delta from the previous event)
+ *                 URI origin, i.e. scheme and authority (dictionary index, varint)
+ *                 rest of the URI (string)
+ *                 user (dictionary index + 1, varint; 0 when there's none)
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Application names and URI
+ * origins repeat on nearly every event, so each is written once per payload.
+ */
+class UriQueriedBinaryCodec {
+
+	static final String CONTENT_TYPE = "application/vnd.uriqueried+binary";
+
+	static final int VERSION = 2;
+
+	byte[] encode(List<UriQueried> events) {
+		Map<String, Integer> dictionary = new LinkedHashMap<>();
+		for (UriQueried event : events) {
+			dictionary.putIfAbsent(nullToEmpty(event.getApplicationName()), dictionary.size());
+			dictionary.putIfAbsent(origin(nullToEmpty(event.getUri())), dictionary.size());
+			if (event.getUser() != null) {
+				dictionary.putIfAbsent(event.getUser(), dictionary.size());
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + events.size() * 16);
+		out.write(VERSION);
+		writeVarint(out, events.size());
+		writeVarint(out, dictionary.size());
+		dictionary.keySet().forEach(entry -> writeString(out, entry));
+		long previous = 0;
+		for (UriQueried event : events) {
+			String uri = nullToEmpty(event.getUri());
+			String origin = origin(uri);
+			writeVarint(out, dictionary.get(nullToEmpty(event.getApplicationName())));
+			writeVarint(out, zigZag(event.getTimestamp() - previous));
+			writeVarint(out, dictionary.get(origin));
+			writeString(out, uri.substring(origin.length()));
+			writeVarint(out, event.getUser() != null ? dictionary.get(event.getUser()) + 1 : 0);
+			previous = event.getTimestamp();
+		}
+		return out.toByteArray();
+	}
+
+	static String origin(String uri) {
+		int scheme = uri.indexOf("://");
+		if (scheme < 0) {
+			return "";
+		}
+		int path = uri.indexOf('/', scheme + 3);
+		return path < 0 ? uri : uri.substring(0, path);
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
+
+/**
+ * Caches successful responses to {@code GET} requests of a route in memory, bounded in
+ * entries, for the filter's time-to-live or less when the response's
+ * {@code Cache-Control} asks for it. Responses are kept per value of the request
+ * headers their {@code Vary} lists. {@code no-store}, {@code no-cache} and
+ * {@code private} responses, {@code Vary: *} and {@code Set-Cookie} responses are not
+ * cached, and requests sent with {@code no-cache} or {@code no-store} always go to the
+ * backend. Hop-by-hop headers and the ones set for a single request, like the
+ * {@code X-RateLimit-*} ones, are not stored. Bodies can be kept off-heap.
+ *
+ * The lookup happens where the route lists the filter, so a cached response still goes
+ * through the filters listed before it, e.g. {@code RequestRateLimiter}, and skips the
+ * ones after it, e.g. {@code ConcurrencyLimit}, which only has to protect the upstream.
+ * Routes with the same name share their cache, which outlives the filters rebuilt on
+ * every refresh of the routes.
+ *
+ * Usable as {@code CacheResponse=30s,1000} or with named {@code args} in YAML, and
+ * through {@link #apply(java.util.function.Consumer)} from the Java DSL.
+ */
+class CacheResponseGatewayFilterFactory extends AbstractGatewayFilterFactory<CacheResponseGatewayFilterFactory.Config> {
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, ResponseCache> caches = new ConcurrentHashMap<>();
+
+	CacheResponseGatewayFilterFactory(MeterRegistry meterRegistry) {
+		super(Config.class);
+		this.meterRegistry = meterRegistry;
+	}
+
+	@Override
+	public List<String> shortcutFieldOrder() {
+		return Arrays.asList("ttl", "maxEntries");
+	}
+
+	@Override
+	public GatewayFilter apply(Config config) {
+		// not ordered, so that it runs where the route lists it; the response gets
+		// decorated before that by the ResponseCaptureFilter
+		return new CacheResponseFilter(config, this);
+	}
+
+	ResponseCache cache(String name, Config config) {
+		ResponseCache cache = this.caches.computeIfAbsent(name, key -> new ResponseCache(config, key, this.meterRegistry));
+		cache.configure(config);
+		return cache;
+	}
+
+	public static class Config {
+
+		/**
+		 * Name of the cache in the metrics; the id of the route when not set.
+		 */
+		private String name;
+
+		/**
+		 * Longest time a response is served from the cache.
+		 */
+		private Duration ttl = Duration.ofMinutes(1);
+
+		/**
+		 * Maximum number of cached responses.
+		 */
+		private long maxEntries = 1000;
+
+		/**
+		 * Responses with bigger bodies, in bytes, are not cached.
+		 */
+		private int maxBodySize = 256 * 1024;
+
+		/**
+		 * Whether to keep the cached bodies in direct buffers, outside of the heap.
+		 */
+		private boolean offHeap;
+
+		public String getName() {
+			return this.name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public Duration getTtl() {
+			return this.ttl;
+		}
+
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+
+		public long getMaxEntries() {
+			return this.maxEntries;
+		}
+
+		public void setMaxEntries(long maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		public int getMaxBodySize() {
+			return this.maxBodySize;
+		}
+
+		public void setMaxBodySize(int maxBodySize) {
+			this.maxBodySize = maxBodySize;
+		}
+
+		public boolean isOffHeap() {
+			return this.offHeap;
+		}
+
+		public void setOffHeap(boolean offHeap) {
+			this.offHeap = offHeap;
+		}
+	}
+}
+
+class CacheResponseFilter implements GatewayFilter {
+
+	private final CacheResponseGatewayFilterFactory.Config config;
+
+	private final CacheResponseGatewayFilterFactory factory;
+
+	private volatile ResponseCache cache;
+
+	CacheResponseFilter(CacheResponseGatewayFilterFactory.Config config, CacheResponseGatewayFilterFactory factory) {
+		this.config = config;
+		this.factory = factory;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+		ServerHttpRequest request = exchange.getRequest();
+		if (request.getMethod() != HttpMethod.GET) {
+			return chain.filter(exchange);
+		}
+		Map<String, String> directives = ResponseCache.directives(request.getHeaders().getCacheControl());
+		if (directives.containsKey("no-store")) {
+			return chain.filter(exchange);
+		}
+		ResponseCache cache = cache(exchange);
+		String key = request.getURI().toString();
+		if (!directives.containsKey("no-cache")) {
+			CachedResponse cached = cache.get(key, request.getHeaders());
+			if (cached != null) {
+				return cached.writeTo(exchange.getResponse());
+			}
+		}
+		CachingResponse response = exchange.getAttribute(CachingResponse.ATTRIBUTE);
+		if (response != null) {
+			response.cacheInto(cache, key, request.getHeaders());
+		}
+		return chain.filter(exchange);
+	}
+
+	// the route, and so the name of the cache, is only known once a request comes in
+	private ResponseCache cache(ServerWebExchange exchange) {
+		ResponseCache cache = this.cache;
+		if (cache == null) {
+			synchronized (this) {
+				if (this.cache == null) {
+					Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+					String name = this.config.getName() != null ? this.config.getName()
+							: route != null ? route.getId() : "default";
+					this.cache = this.factory.cache(name, this.config);
+				}
+				cache = this.cache;
+			}
+		}
+		return cache;
+	}
+}
+
+/**
+ * Responses of a single route, by request URI and the values of the request headers
+ * listed in their {@code Vary}.
+ */
+class ResponseCache {
+
+	private static final List<String> UNCACHEABLE = Arrays.asList("no-store", "no-cache", "private");
+
+	private static final List<String> HOP_BY_HOP = Arrays.asList("connection", "keep-alive", "proxy-authenticate",
+			"proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade");
+
+	private static final String RATE_LIMIT_HEADERS = "x-ratelimit-";
+
+	private volatile CacheResponseGatewayFilterFactory.Config config;
+
+	// request URI -> names of the headers the cached responses vary on
+	private final Cache<String, List<String>> vary;
+
+	private final Cache<String, CachedResponse> responses;
+
+	ResponseCache(CacheResponseGatewayFilterFactory.Config config, String name, MeterRegistry meterRegistry) {
+		this(config, name, meterRegistry, Ticker.systemTicker());
+	}
+
+	ResponseCache(CacheResponseGatewayFilterFactory.Config config, String name, MeterRegistry meterRegistry,
+			Ticker ticker) {
+		this.config = config;
+		this.vary = Caffeine.newBuilder()
+				.ticker(ticker)
+				.maximumSize(config.getMaxEntries())
+				.expireAfterWrite(config.getTtl().toNanos(), TimeUnit.NANOSECONDS)
+				.build();
+		this.responses = Caffeine.newBuilder()
+				.ticker(ticker)
+				.maximumSize(config.getMaxEntries())
+				.expireAfter(new Expiry<String, CachedResponse>() {
+					@Override
+					public long expireAfterCreate(String key, CachedResponse value, long currentTime) {
+						return value.ttlNanos;
+					}
+
+					@Override
+					public long expireAfterUpdate(String key, CachedResponse value, long currentTime, long currentDuration) {
+						return value.ttlNanos;
+					}
+
+					@Override
+					public long expireAfterRead(String key, CachedResponse value, long currentTime, long currentDuration) {
+						return currentDuration;
+					}
+				})
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, this.responses, "gateway.responses", "route", name);
+	}
+
+	/**
+	 * Takes the limits of a filter rebuilt with a new configuration. Responses already
+	 * cached keep their time-to-live.
+	 */
+	void configure(CacheResponseGatewayFilterFactory.Config config) {
+		if (config == this.config) {
+			return;
+		}
+		this.config = config;
+		this.vary.policy().eviction().ifPresent(eviction -> eviction.setMaximum(config.getMaxEntries()));
+		this.vary.policy().expireAfterWrite()
+				.ifPresent(expiration -> expiration.setExpiresAfter(config.getTtl().toNanos(), TimeUnit.NANOSECONDS));
+		this.responses.policy().eviction().ifPresent(eviction -> eviction.setMaximum(config.getMaxEntries()));
+	}
+
+	CachedResponse get(String uri, HttpHeaders requestHeaders) {
+		List<String> vary = this.vary.getIfPresent(uri);
+		return this.responses.getIfPresent(key(uri, vary != null ? vary : Collections.emptyList(), requestHeaders));
+	}
+
+	/**
+	 * @return how long the response may be cached for, {@code 0} if it may not be
+	 */
+	long ttlNanos(HttpStatus status, HttpHeaders headers) {
+		if (status != HttpStatus.OK || headers.containsKey(HttpHeaders.SET_COOKIE) || headers.getVary().contains("*")) {
+			return 0;
+		}
+		Map<String, String> directives = directives(headers.getCacheControl());
+		if (UNCACHEABLE.stream().anyMatch(directives::containsKey)) {
+			return 0;
+		}
+		long ttl = this.config.getTtl().toNanos();
+		String maxAge = directives.containsKey("s-maxage") ? directives.get("s-maxage") : directives.get("max-age");
+		if (maxAge != null) {
+			try {
+				ttl = Math.min(ttl, TimeUnit.SECONDS.toNanos(Long.parseLong(maxAge)));
+			}
+			catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return Math.max(ttl, 0);
+	}
+
+	int maxBodySize() {
+		return this.config.getMaxBodySize();
+	}
+
+	void put(String uri, HttpHeaders requestHeaders, HttpStatus status, HttpHeaders headers, byte[] body, long ttlNanos) {
+		List<String> vary = headers.getVary();
+		this.vary.put(uri, vary);
+		this.responses.put(key(uri, vary, requestHeaders),
+				new CachedResponse(status, storable(headers), body, this.config.isOffHeap(), ttlNanos));
+	}
+
+	/**
+	 * @return the headers without the hop-by-hop ones, those named in {@code Connection}
+	 * among them, and without those that only hold for the request that got the response
+	 */
+	static HttpHeaders storable(HttpHeaders headers) {
+		Set<String> dropped = new HashSet<>(HOP_BY_HOP);
+		headers.getConnection().forEach(name -> dropped.add(name.trim().toLowerCase(Locale.ROOT)));
+		dropped.add("age");
+		HttpHeaders stored = new HttpHeaders();
+		headers.forEach((name, values) -> {
+			String lowerCase = name.toLowerCase(Locale.ROOT);
+			if (!dropped.contains(lowerCase) && !lowerCase.startsWith(RATE_LIMIT_HEADERS)) {
+				stored.put(name, new ArrayList<>(values));
+			}
+		});
+		return stored;
+	}
+
+	static Map<String, String> directives(String cacheControl) {
+		if (cacheControl == null || cacheControl.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> directives = new HashMap<>();
+		for (String directive : cacheControl.split(",")) {
+			String trimmed = directive.trim().toLowerCase(Locale.ROOT);
+			int equals = trimmed.indexOf('=');
+			if (equals < 0) {
+				directives.put(trimmed, "");
+			}
+			else {
+				directives.put(trimmed.substring(0, equals).trim(), trimmed.substring(equals + 1).trim().replace("\"", ""));
+			}
+		}
+		return directives;
+	}
+
+	private static String key(String uri, List<String> vary, HttpHeaders requestHeaders) {
+		if (vary.isEmpty()) {
+			return uri;
+		}
+		StringBuilder key = new StringBuilder(uri);
+		for (String header : vary) {
+			key.append('\n').append(header.toLowerCase(Locale.ROOT)).append('=')
+					.append(String.join(",", requestHeaders.getOrEmpty(header)));
+		}
+		return key.toString();
+	}
+}
+
+class CachedResponse {
+
+	final HttpStatus status;
+
+	final HttpHeaders headers;
+
+	final long ttlNanos;
+
+	private final byte[] body;
+
+	private final ByteBuffer offHeapBody;
+
+	private final long storedAt = System.nanoTime();
+
+	CachedResponse(HttpStatus status, HttpHeaders headers, byte[] body, boolean offHeap, long ttlNanos) {
+		this.status = status;
+		this.headers = headers;
+		this.ttlNanos = ttlNanos;
+		if (offHeap) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+			buffer.put(body);
+			buffer.flip();
+			this.offHeapBody = buffer;
+			this.body = null;
+		}
+		else {
+			this.offHeapBody = null;
+			this.body = body;
+		}
+	}
+
+	Mono<Void> writeTo(ServerHttpResponse response) {
+		response.setStatusCode(this.status);
+		response.getHeaders().putAll(this.headers);
+		response.getHeaders().set("Age", String.valueOf(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.storedAt)));
+		DataBufferFactory factory = response.bufferFactory();
+		DataBuffer body = this.body != null ? factory.wrap(this.body) : factory.wrap(this.offHeapBody.duplicate());
+		return response.writeWith(Mono.just(body));
+	}
+}
+
+/**
+ * Puts a {@link CachingResponse} in place of the response of {@code GET} requests to
+ * routes with a {@code CacheResponse} filter. {@link NettyWriteResponseFilter} writes to
+ * the response it was given, so this has to come before it, while the
+ * {@link CacheResponseFilter} runs later, where the route lists it.
+ */
+class ResponseCaptureFilter implements GlobalFilter, Ordered {
+
+	static final int ORDER = NettyWriteResponseFilter.WRITE_RESPONSE_FILTER_ORDER - 1;
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+		Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+		if (exchange.getRequest().getMethod() != HttpMethod.GET || route == null || !caches(route)) {
+			return chain.filter(exchange);
+		}
+		CachingResponse response = new CachingResponse(exchange.getResponse());
+		exchange.getAttributes().put(CachingResponse.ATTRIBUTE, response);
+		return chain.filter(exchange.mutate().response(response).build());
+	}
+
+	private static boolean caches(Route route) {
+		for (GatewayFilter filter : route.getFilters()) {
+			GatewayFilter delegate = filter instanceof OrderedGatewayFilter ? ((OrderedGatewayFilter) filter).getDelegate()
+					: filter;
+			if (delegate instanceof CacheResponseFilter) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int getOrder() {
+		return ORDER;
+	}
+}
+
+/**
+ * Copies the body of a cacheable response on its way out and caches it once it has
+ * been written in full. Passes the response through untouched until
+ * {@link #cacheInto(ResponseCache, String, HttpHeaders)} is called, i.e. on cache hits
+ * and on requests that never got to the {@link CacheResponseFilter}.
+ */
+class CachingResponse extends ServerHttpResponseDecorator {
+
+	static final String ATTRIBUTE = CachingResponse.class.getName();
+
+	private volatile ResponseCache cache;
+
+	private volatile String uri;
+
+	private volatile HttpHeaders requestHeaders;
+
+	CachingResponse(ServerHttpResponse delegate) {
+		super(delegate);
+	}
+
+	void cacheInto(ResponseCache cache, String uri, HttpHeaders requestHeaders) {
+		this.uri = uri;
+		this.requestHeaders = requestHeaders;
+		this.cache = cache;
+	}
+
+	@Override
+	public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+		ResponseCache cache = this.cache;
+		if (cache == null) {
+			return super.writeWith(body);
+		}
+		HttpStatus status = getStatusCode();
+		long ttlNanos = cache.ttlNanos(status, getHeaders());
+		long contentLength = getHeaders().getContentLength();
+		if (ttlNanos <= 0 || contentLength > cache.maxBodySize()) {
+			return super.writeWith(body);
+		}
+		ByteArrayOutputStream copy = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 256);
+		boolean[] tooLarge = new boolean[1];
+		Flux<? extends DataBuffer> copying = Flux.from(body)
+				.doOnNext(buffer -> {
+					if (tooLarge[0]) {
+						return;
+					}
+					if (copy.size() + buffer.readableByteCount() > cache.maxBodySize()) {
+						tooLarge[0] = true;
+						return;
+					}
+					// a view of the readable bytes, the buffer's positions stay untouched
+					ByteBuffer bytes = buffer.asByteBuffer();
+					byte[] chunk = new byte[bytes.remaining()];
+					bytes.get(chunk);
+					copy.write(chunk, 0, chunk.length);
+				})
+				.doOnComplete(() -> {
+					if (!tooLarge[0]) {
+						cache.put(this.uri, this.requestHeaders, status, getHeaders(), copy.toByteArray(), ttlNanos);
+					}
+				});
+		return super.writeWith(copying);
+	}
+}
+
+/**
+ * In-process {@link org.springframework.cloud.gateway.filter.ratelimit.RateLimiter} for
+ * the {@code RequestRateLimiter} filter, so that rate limiting needs no round trip to
+ * Redis. Every key (see {@link KeyResolvers}) of a route gets a token bucket, kept as a
+ * single theoretical arrival time updated with compare-and-set (GCRA), so concurrent
+ * requests never lock. Buckets of keys not seen for a while are evicted, and there are
+ * never more than {@code rate-limiter.max-keys} of them.
+ *
+ * Routes configured in YAML take their limits from the
+ * {@code local-rate-limiter.*} filter args, all others from the {@code rate-limiter.*}
+ * properties.
+ */
+class LocalRateLimiter extends AbstractRateLimiter<LocalRateLimiter.Config> {
+
+	static final String CONFIGURATION_PROPERTY_NAME = "local-rate-limiter";
+
+	static final String REMAINING_HEADER = "X-RateLimit-Remaining";
+
+	static final String REPLENISH_RATE_HEADER = "X-RateLimit-Replenish-Rate";
+
+	static final String BURST_CAPACITY_HEADER = "X-RateLimit-Burst-Capacity";
+
+	private final Config defaultConfig;
+
+	private final Cache<String, AtomicLong> buckets;
+
+	private final MeterRegistry meterRegistry;
+
+	private final LongSupplier nanoClock;
+
+	// by route id
+	private final Map<String, Counter> allowed = new ConcurrentHashMap<>();
+
+	private final Map<String, Counter> denied = new ConcurrentHashMap<>();
+
+	LocalRateLimiter(RateLimiterProperties properties, ConfigurationService configurationService, MeterRegistry meterRegistry) {
+		this(properties, configurationService, meterRegistry, System::nanoTime);
+	}
+
+	LocalRateLimiter(RateLimiterProperties properties, ConfigurationService configurationService, MeterRegistry meterRegistry,
+			LongSupplier nanoClock) {
+		super(Config.class, CONFIGURATION_PROPERTY_NAME, configurationService);
+		this.nanoClock = nanoClock;
+		this.defaultConfig = new Config();
+		this.defaultConfig.setReplenishRate(properties.getReplenishRate());
+		this.defaultConfig.setBurstCapacity(properties.getBurstCapacity());
+		this.defaultConfig.setRequestedTokens(properties.getRequestedTokens());
+		this.buckets = Caffeine.newBuilder()
+				.maximumSize(properties.getMaxKeys())
+				.expireAfterAccess(properties.getIdleTimeout().toNanos(), TimeUnit.NANOSECONDS)
+				.build();
+		this.meterRegistry = meterRegistry;
+		Gauge.builder("gateway.rate.limiter.keys", this.buckets, Cache::estimatedSize)
+				.description("Number of keys with a token bucket")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public Mono<Response> isAllowed(String routeId, String id) {
+		Config config = getConfig().getOrDefault(routeId, this.defaultConfig);
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(config.getReplenishRate(), 1);
+		long tolerance = interval * config.getBurstCapacity();
+		long cost = interval * config.getRequestedTokens();
+		long now = this.nanoClock.getAsLong();
+		// a new bucket is a full one
+		AtomicLong bucket = this.buckets.get(routeId + ':' + id, key -> new AtomicLong(now));
+		while (true) {
+			long arrival = bucket.get();
+			long backlog = (arrival - now > 0 ? arrival - now : 0) + cost;
+			if (backlog > tolerance) {
+				return Mono.just(response(routeId, false, config, (tolerance - backlog + cost) / interval));
+			}
+			if (bucket.compareAndSet(arrival, now + backlog)) {
+				return Mono.just(response(routeId, true, config, (tolerance - backlog) / interval));
+			}
+		}
+	}
+
+	private Response response(String routeId, boolean allowed, Config config, long remaining) {
+		counter(allowed ? this.allowed : this.denied, routeId, allowed ? "allowed" : "denied").increment();
+		if (!config.isIncludeHeaders()) {
+			return new Response(allowed, Collections.emptyMap());
+		}
+		Map<String, String> headers = new HashMap<>();
+		headers.put(REMAINING_HEADER, String.valueOf(Math.max(remaining, 0)));
+		headers.put(REPLENISH_RATE_HEADER, String.valueOf(config.getReplenishRate()));
+		headers.put(BURST_CAPACITY_HEADER, String.valueOf(config.getBurstCapacity()));
+		return new Response(allowed, headers);
+	}
+
+	private Counter counter(Map<String, Counter> counters, String routeId, String result) {
+		Counter counter = counters.get(routeId);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(routeId,
+					id -> this.meterRegistry.counter("gateway.rate.limiter.requests", "route", id, "result", result));
+		}
+		return counter;
+	}
+
+	public static class Config {
+
+		/**
+		 * Tokens added to a bucket per second.
+		 */
+		private int replenishRate = 100;
+
+		/**
+		 * Maximum number of tokens in a bucket, i.e. the allowed burst.
+		 */
+		private int burstCapacity = 200;
+
+		/**
+		 * Tokens taken by a single request.
+		 */
+		private int requestedTokens = 1;
+
+		/**
+		 * Whether to send the rate limit headers back.
+		 */
+		private boolean includeHeaders = true;
+
+		public int getReplenishRate() {
+			return this.replenishRate;
+		}
+
+		public Config setReplenishRate(int replenishRate) {
+			this.replenishRate = replenishRate;
+			return this;
+		}
+
+		public int getBurstCapacity() {
+			return this.burstCapacity;
+		}
+
+		public Config setBurstCapacity(int burstCapacity) {
+			this.burstCapacity = burstCapacity;
+			return this;
+		}
+
+		public int getRequestedTokens() {
+			return this.requestedTokens;
+		}
+
+		public Config setRequestedTokens(int requestedTokens) {
+			this.requestedTokens = requestedTokens;
+			return this;
+		}
+
+		public boolean isIncludeHeaders() {
+			return this.includeHeaders;
+		}
+
+		public Config setIncludeHeaders(boolean includeHeaders) {
+			this.includeHeaders = includeHeaders;
+			return this;
+		}
+	}
+}
+
+@ConfigurationProperties("rate-limiter")
+class RateLimiterProperties {
+
+	/**
+	 * Tokens added to a bucket per second, for routes without their own limits.
+	 */
+	private int replenishRate = 100;
+
+	/**
+	 * Maximum number of tokens in a bucket, for routes without their own limits.
+	 */
+	private int burstCapacity = 200;
+
+	/**
+	 * Tokens taken by a single request, for routes without their own limits.
+	 */
+	private int requestedTokens = 1;
+
+	/**
+	 * Maximum number of keys that have a bucket; the least recently used ones go first.
+	 */
+	private long maxKeys = 100_000;
+
+	/**
+	 * Buckets of keys not seen for that long are dropped. Should be at least the time a
+	 * bucket takes to refill, then dropping it loses nothing.
+	 */
+	private Duration idleTimeout = Duration.ofMinutes(1);
+
+	public int getReplenishRate() {
+		return this.replenishRate;
+	}
+
+	public void setReplenishRate(int replenishRate) {
+		this.replenishRate = replenishRate;
+	}
+
+	public int getBurstCapacity() {
+		return this.burstCapacity;
+	}
+
+	public void setBurstCapacity(int burstCapacity) {
+		this.burstCapacity = burstCapacity;
+	}
+
+	public int getRequestedTokens() {
+		return this.requestedTokens;
+	}
+
+	public void setRequestedTokens(int requestedTokens) {
+		this.requestedTokens = requestedTokens;
+	}
+
+	public long getMaxKeys() {
+		return this.maxKeys;
+	}
+
+	public void setMaxKeys(long maxKeys) {
+		this.maxKeys = maxKeys;
+	}
+
+	public Duration getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	public void setIdleTimeout(Duration idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+}
+
+/**
+ * What requests get rate limited by: the user from the baggage, the client's IP or
+ * the whole route.
+ */
+final class KeyResolvers {
+
+	private KeyResolvers() {
+	}
+
+	/**
+	 * The user from the {@code user} baggage, the client's IP when there is none.
+	 */
+	static KeyResolver user() {
+		return exchange -> {
+			HttpHeaders headers = exchange.getRequest().getHeaders();
+			String user = headers.getFirst("baggage-user");
+			if (user == null) {
+				user = headers.getFirst("baggage_user");
+			}
+			if (user == null) {
+				user = ExtraFieldPropagation.get("user");
+			}
+			return user != null && !user.isEmpty() ? Mono.just("user:" + user) : ip().resolve(exchange);
+		};
+	}
+
+	static KeyResolver ip() {
+		return exchange -> {
+			InetSocketAddress address = exchange.getRequest().getRemoteAddress();
+			return Mono.justOrEmpty(address != null && address.getAddress() != null
+					? "ip:" + address.getAddress().getHostAddress() : null);
+		};
+	}
+
+	static KeyResolver route() {
+		return exchange -> {
+			Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+			return Mono.justOrEmpty(route != null ? "route:" + route.getId() : null);
+		};
+	}
+}
+
+/**
+ * Caps the requests a route has in flight at a limit learned from the latency of its
+ * upstream, instead of a fixed one, so the upstream stays in its low-latency regime
+ * during spikes (see {@link AdaptiveConcurrencyLimiter}). Requests over the limit wait
+ * in a bounded queue for at most {@code maxWait} and are rejected with a
+ * {@code 503} when the queue is full or the wait is over.
+ *
+ * Routes with the same name share their limiter, which outlives the filters rebuilt on
+ * every refresh of the routes, so the learned limit and the requests in flight carry
+ * over.
+ *
+ * Usable as {@code ConcurrencyLimit=20,200} or with named {@code args} in YAML, and
+ * through {@link #apply(java.util.function.Consumer)} from the Java DSL.
+ */
+class ConcurrencyLimitGatewayFilterFactory extends AbstractGatewayFilterFactory<ConcurrencyLimitGatewayFilterFactory.Config> {
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+	ConcurrencyLimitGatewayFilterFactory(MeterRegistry meterRegistry) {
+		super(Config.class);
+		this.meterRegistry = meterRegistry;
+	}
+
+	@Override
+	public List<String> shortcutFieldOrder() {
+		return Arrays.asList("initialLimit", "maxLimit");
+	}
+
+	@Override
+	public GatewayFilter apply(Config config) {
+		return new ConcurrencyLimitFilter(config, this);
+	}
+
+	AdaptiveConcurrencyLimiter limiter(String name, Config config) {
+		AdaptiveConcurrencyLimiter limiter = this.limiters.computeIfAbsent(name,
+				key -> new AdaptiveConcurrencyLimiter(config, key, this.meterRegistry));
+		limiter.configure(config);
+		return limiter;
+	}
+
+	public static class Config {
+
+		/**
+		 * Name of the limiter in the metrics; the id of the route when not set.
+		 */
+		private String name;
+
+		/**
+		 * Limit to start with, before any latency got measured.
+		 */
+		private int initialLimit = 20;
+
+		private int minLimit = 1;
+
+		private int maxLimit = 200;
+
+		/**
+		 * Maximum number of requests waiting for one in flight to finish.
+		 */
+		private int maxQueueSize = 50;
+
+		/**
+		 * Longest time a request waits in the queue before it gets rejected.
+		 */
+		private Duration maxWait = Duration.ofMillis(50);
+
+		/**
+		 * How much latency, as a multiple of the long term one, is still fine before the
+		 * limit goes down.
+		 */
+		private double rttTolerance = 1.5;
+
+		/**
+		 * Weight, between 0 and 1, of a new limit against the current one.
+		 */
+		private double smoothing = 0.2;
+
+		/**
+		 * Number of requests the long term latency is averaged over.
+		 */
+		private int longWindow = 600;
+
+		public String getName() {
+			return this.name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public int getInitialLimit() {
+			return this.initialLimit;
+		}
+
+		public void setInitialLimit(int initialLimit) {
+			this.initialLimit = initialLimit;
+		}
+
+		public int getMinLimit() {
+			return this.minLimit;
+		}
+
+		public void setMinLimit(int minLimit) {
+			this.minLimit = minLimit;
+		}
+
+		public int getMaxLimit() {
+			return this.maxLimit;
+		}
+
+		public void setMaxLimit(int maxLimit) {
+			this.maxLimit = maxLimit;
+		}
+
+		public int getMaxQueueSize() {
+			return this.maxQueueSize;
+		}
+
+		public void setMaxQueueSize(int maxQueueSize) {
+			this.maxQueueSize = maxQueueSize;
+		}
+
+		public Duration getMaxWait() {
+			return this.maxWait;
+		}
+
+		public void setMaxWait(Duration maxWait) {
+			this.maxWait = maxWait;
+		}
+
+		public double getRttTolerance() {
+			return this.rttTolerance;
+		}
+
+		public void setRttTolerance(double rttTolerance) {
+			this.rttTolerance = rttTolerance;
+		}
+
+		public double getSmoothing() {
+			return this.smoothing;
+		}
+
+		public void setSmoothing(double smoothing) {
+			this.smoothing = smoothing;
+		}
+
+		public int getLongWindow() {
+			return this.longWindow;
+		}
+
+		public void setLongWindow(int longWindow) {
+			this.longWindow = longWindow;
+		}
+	}
+}
+
+class ConcurrencyLimitFilter implements GatewayFilter {
+
+	private final ConcurrencyLimitGatewayFilterFactory.Config config;
+
+	private final ConcurrencyLimitGatewayFilterFactory factory;
+
+	private volatile AdaptiveConcurrencyLimiter limiter;
+
+	ConcurrencyLimitFilter(ConcurrencyLimitGatewayFilterFactory.Config config, ConcurrencyLimitGatewayFilterFactory factory) {
+		this.config = config;
+		this.factory = factory;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+		AdaptiveConcurrencyLimiter limiter = limiter(exchange);
+		return limiter.acquire().flatMap(acquired -> {
+			if (!acquired) {
+				exchange.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+				return exchange.getResponse().setComplete();
+			}
+			long start = System.nanoTime();
+			return chain.filter(exchange).doFinally(signal -> {
+				HttpStatus status = exchange.getResponse().getStatusCode();
+				boolean dropped = signal != SignalType.ON_COMPLETE || (status != null && status.is5xxServerError());
+				limiter.release(System.nanoTime() - start, dropped);
+			});
+		});
+	}
+
+	// the route, and so the name of the limiter, is only known once a request comes in
+	private AdaptiveConcurrencyLimiter limiter(ServerWebExchange exchange) {
+		AdaptiveConcurrencyLimiter limiter = this.limiter;
+		if (limiter == null) {
+			synchronized (this) {
+				if (this.limiter == null) {
+					Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+					String name = this.config.getName() != null ? this.config.getName()
+							: route != null ? route.getId() : "default";
+					this.limiter = this.factory.limiter(name, this.config);
+				}
+				limiter = this.limiter;
+			}
+		}
+		return limiter;
+	}
+}
+
+/**
+ * Gradient based concurrency limit. Every finished request compares its latency with
+ * the long term average one: while it stays within {@code rttTolerance} of it the
+ * limit grows by roughly its square root, as the upstream isn't queueing yet; when it
+ * gets slower the limit goes down by the same ratio. Failed requests take 10% off.
+ * The limit doesn't grow while less than half of it is used, and the long term latency
+ * slowly forgets latency the upstream has recovered from.
+ */
+class AdaptiveConcurrencyLimiter {
+
+	private static final Mono<Boolean> GRANTED = Mono.just(true);
+
+	private static final Mono<Boolean> REJECTED = Mono.just(false);
+
+	private volatile ConcurrencyLimitGatewayFilterFactory.Config config;
+
+	private final Deque<MonoProcessor<Boolean>> waiters = new ArrayDeque<>();
+
+	private final Counter queueFull;
+
+	private final Counter timedOut;
+
+	// all guarded by this
+	private double limit;
+
+	private int inFlight;
+
+	private double longRttNanos;
+
+	AdaptiveConcurrencyLimiter(ConcurrencyLimitGatewayFilterFactory.Config config, String name, MeterRegistry meterRegistry) {
+		this.config = config;
+		this.limit = config.getInitialLimit();
+		this.queueFull = meterRegistry.counter("gateway.concurrency.rejected", "route", name, "reason", "queue-full");
+		this.timedOut = meterRegistry.counter("gateway.concurrency.rejected", "route", name, "reason", "timeout");
+		Gauge.builder("gateway.concurrency.limit", this, AdaptiveConcurrencyLimiter::limit)
+				.tag("route", name)
+				.register(meterRegistry);
+		Gauge.builder("gateway.concurrency.in.flight", this, AdaptiveConcurrencyLimiter::inFlight)
+				.tag("route", name)
+				.register(meterRegistry);
+		Gauge.builder("gateway.concurrency.queued", this, AdaptiveConcurrencyLimiter::queued)
+				.tag("route", name)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Takes the limits of a filter rebuilt with a new configuration, keeping the learned
+	 * limit within them.
+	 */
+	void configure(ConcurrencyLimitGatewayFilterFactory.Config config) {
+		if (config == this.config) {
+			return;
+		}
+		synchronized (this) {
+			this.config = config;
+			this.limit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), this.limit));
+		}
+	}
+
+	/**
+	 * @return {@code true} once the request may go, {@code false} if it got rejected
+	 */
+	Mono<Boolean> acquire() {
+		MonoProcessor<Boolean> waiter;
+		synchronized (this) {
+			if (this.inFlight < (int) this.limit) {
+				this.inFlight++;
+				return GRANTED;
+			}
+			if (this.waiters.size() >= this.config.getMaxQueueSize()) {
+				this.queueFull.increment();
+				return REJECTED;
+			}
+			waiter = MonoProcessor.create();
+			this.waiters.add(waiter);
+		}
+		// whoever comes first, the permit going downstream or the cancellation, owns it
+		AtomicBoolean settled = new AtomicBoolean();
+		return waiter.timeout(this.config.getMaxWait(), Mono.fromSupplier(() -> {
+					boolean granted = abandon(waiter);
+					if (!granted) {
+						this.timedOut.increment();
+					}
+					return granted;
+				}))
+				.filter(acquired -> settled.compareAndSet(false, true))
+				.doOnCancel(() -> {
+					if (settled.compareAndSet(false, true) && abandon(waiter)) {
+						// got the permit while being cancelled, nobody is going to use it
+						release();
+					}
+				});
+	}
+
+	/**
+	 * @param dropped whether the request failed, timed out or got cancelled
+	 */
+	void release(long rttNanos, boolean dropped) {
+		synchronized (this) {
+			update(rttNanos, dropped);
+		}
+		release();
+	}
+
+	private void release() {
+		List<MonoProcessor<Boolean>> granted = new ArrayList<>();
+		synchronized (this) {
+			this.inFlight--;
+			while (this.inFlight < (int) this.limit && !this.waiters.isEmpty()) {
+				this.inFlight++;
+				granted.add(this.waiters.poll());
+			}
+		}
+		granted.forEach(waiter -> waiter.onNext(true));
+	}
+
+	/**
+	 * @return {@code true} if the waiter got the permit before it gave up
+	 */
+	private boolean abandon(MonoProcessor<Boolean> waiter) {
+		synchronized (this) {
+			if (!this.waiters.remove(waiter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void update(long rttNanos, boolean dropped) {
+		if (dropped) {
+			this.limit = Math.max(this.config.getMinLimit(), this.limit * 0.9);
+			return;
+		}
+		if (this.longRttNanos == 0) {
+			this.longRttNanos = rttNanos;
+		}
+		else {
+			this.longRttNanos += (rttNanos - this.longRttNanos) / this.config.getLongWindow();
+		}
+		// the upstream got faster than it used to be, forget about the slow times sooner
+		if (this.longRttNanos / Math.max(rttNanos, 1) > 2) {
+			this.longRttNanos *= 0.95;
+		}
+		if (this.inFlight < this.limit / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, this.config.getRttTolerance() * this.longRttNanos / Math.max(rttNanos, 1)));
+		double newLimit = this.limit * gradient + Math.sqrt(this.limit);
+		newLimit = this.limit * (1 - this.config.getSmoothing()) + newLimit * this.config.getSmoothing();
+		this.limit = Math.max(this.config.getMinLimit(), Math.min(this.config.getMaxLimit(), newLimit));
+	}
+
+	synchronized double limit() {
+		return this.limit;
+	}
+
+	synchronized int inFlight() {
+		return this.inFlight;
+	}
+
+	synchronized int queued() {
+		return this.waiters.size();
+	}
+}
+
+/**
+ * Puts the {@link IndexedRoutePredicateHandlerMapping} in place of the gateway's own
+ * {@link RoutePredicateHandlerMapping}, which can't be replaced with a bean of our own,
+ * and has the route definitions carry their paths into the routes built from them.
+ */
+class IndexedRoutesPostProcessor implements BeanPostProcessor, BeanFactoryAware {
+
+	private final ObjectProvider<FilteringWebHandler> webHandler;
+
+	private final ObjectProvider<RouteLocator> routeLocator;
+
+	private final ObjectProvider<GlobalCorsProperties> globalCorsProperties;
+
+	private final Environment environment;
+
+	private AutowireCapableBeanFactory beanFactory;
+
+	IndexedRoutesPostProcessor(ObjectProvider<FilteringWebHandler> webHandler, ObjectProvider<RouteLocator> routeLocator,
+			ObjectProvider<GlobalCorsProperties> globalCorsProperties, Environment environment) {
+		this.webHandler = webHandler;
+		this.routeLocator = routeLocator;
+		this.globalCorsProperties = globalCorsProperties;
+		this.environment = environment;
+	}
+
+	@Override
+	public void setBeanFactory(BeanFactory beanFactory) {
+		this.beanFactory = (AutowireCapableBeanFactory) beanFactory;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		// the primary locator, the one routes get built from
+		if (bean instanceof CompositeRouteDefinitionLocator) {
+			return (RouteDefinitionLocator) () -> ((RouteDefinitionLocator) bean).getRouteDefinitions()
+					.map(RouteIndex::withPaths);
+		}
+		if (!(bean instanceof RoutePredicateHandlerMapping) || bean instanceof IndexedRoutePredicateHandlerMapping) {
+			return bean;
+		}
+		IndexedRoutePredicateHandlerMapping indexed = new IndexedRoutePredicateHandlerMapping(this.webHandler.getObject(),
+				this.routeLocator.getObject(), this.globalCorsProperties.getObject(), this.environment);
+		return this.beanFactory.initializeBean(indexed, beanName);
+	}
+}
+
+/**
+ * Looks the route of a request up in a {@link RouteIndex} instead of evaluating the
+ * predicates of all routes one after the other. The index is built from the very list
+ * of routes the gateway would match, and rebuilt whenever that list changes, so it
+ * never lags behind a refresh. Falls back to matching one by one if the index can't
+ * be built.
+ */
+class IndexedRoutePredicateHandlerMapping extends RoutePredicateHandlerMapping {
+
+	private static final Logger log = LoggerFactory.getLogger(IndexedRoutePredicateHandlerMapping.class);
+
+	private final RouteLocator routeLocator;
+
+	private volatile RouteIndex index;
+
+	IndexedRoutePredicateHandlerMapping(FilteringWebHandler webHandler, RouteLocator routeLocator,
+			GlobalCorsProperties globalCorsProperties, Environment environment) {
+		super(webHandler, routeLocator, globalCorsProperties, environment);
+		this.routeLocator = routeLocator;
+	}
+
+	RouteIndex index(List<Route> routes) {
+		RouteIndex index = this.index;
+		if (index == null || !index.indexes(routes)) {
+			index = new RouteIndex(routes);
+			log.info("Indexed [{}] routes, [{}] of them by path", index.size(), index.indexed());
+			this.index = index;
+		}
+		return index;
+	}
+
+	@Override
+	protected Mono<Route> lookupRoute(ServerWebExchange exchange) {
+		return this.routeLocator.getRoutes().collectList()
+				.map(this::index)
+				.onErrorResume(e -> {
+					log.warn("Failed to index the routes, matching them one by one", e);
+					return Mono.empty();
+				})
+				.map(index -> index.lookup(exchange))
+				.switchIfEmpty(Mono.defer(() -> Mono.just(super.lookupRoute(exchange))))
+				.flatMap(lookup -> lookup)
+				.map(route -> {
+					validateRoute(route, exchange);
+					return route;
+				});
+	}
+}
+
+/**
+ * Routes by the paths their {@code Path} predicate matches, in a trie of path
+ * segments. A lookup collects the routes whose patterns could match the request's path
+ * together with the routes that have no {@code Path} predicate, or were defined in code
+ * and so can't be indexed, and evaluates only their predicates, in the routes' order.
+ * The first match is the same route as without the index, while the cost depends on
+ * the depth of the path instead of the number of routes.
+ * <p>
+ * The patterns travel with the routes, in the {@link #PATHS} metadata that
+ * {@link #withPaths(RouteDefinition)} puts on the definitions they're built from, so a
+ * route is never indexed under the paths of another version of it.
+ */
+class RouteIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(RouteIndex.class);
+
+	static final String PATHS = "route-index-paths";
+
+	private final List<Route> routes;
+
+	private final Node root = new Node();
+
+	private final List<Integer> unindexed = new ArrayList<>();
+
+	@SuppressWarnings("unchecked")
+	RouteIndex(List<Route> routes) {
+		this.routes = routes;
+		for (int i = 0; i < routes.size(); i++) {
+			Object patterns = routes.get(i).getMetadata().get(PATHS);
+			if (!(patterns instanceof List) || ((List<?>) patterns).isEmpty()) {
+				this.unindexed.add(i);
+				continue;
+			}
+			for (String pattern : (List<String>) patterns) {
+				add(pattern, i);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the definition with the path patterns of its first
+	 * {@code Path} predicate in its metadata, unless they can't be indexed
+	 */
+	static RouteDefinition withPaths(RouteDefinition definition) {
+		RouteDefinition copy = new RouteDefinition();
+		copy.setId(definition.getId());
+		copy.setUri(definition.getUri());
+		copy.setOrder(definition.getOrder());
+		copy.setPredicates(definition.getPredicates());
+		copy.setFilters(definition.getFilters());
+		Map<String, Object> metadata = definition.getMetadata() != null ? new HashMap<>(definition.getMetadata())
+				: new HashMap<>();
+		metadata.remove(PATHS);
+		definition.getPredicates().stream()
+				.filter(predicate -> "Path".equals(predicate.getName()))
+				.findFirst()
+				.map(RouteIndex::patterns)
+				.filter(patterns -> !patterns.isEmpty())
+				.ifPresent(patterns -> metadata.put(PATHS, patterns));
+		copy.setMetadata(metadata);
+		return copy;
+	}
+
+	/**
+	 * @return whether this index was built from exactly these routes
+	 */
+	boolean indexes(List<Route> routes) {
+		if (routes.size() != this.routes.size()) {
+			return false;
+		}
+		for (int i = 0; i < routes.size(); i++) {
+			if (routes.get(i) != this.routes.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<String> patterns(PredicateDefinition predicate) {
+		List<String> patterns = new ArrayList<>();
+		for (Map.Entry<String, String> arg : predicate.getArgs().entrySet()) {
+			if ("matchOptionalTrailingSeparator".equals(arg.getKey())) {
+				continue;
+			}
+			if (arg.getValue() == null || !arg.getValue().startsWith("/")) {
+				return Collections.emptyList();
+			}
+			patterns.add(arg.getValue());
+		}
+		return patterns;
+	}
+
+	int size() {
+		return this.routes.size();
+	}
+
+	int indexed() {
+		return this.routes.size() - this.unindexed.size();
+	}
+
+	Mono<Route> lookup(ServerWebExchange exchange) {
+		return firstMatch(candidates(exchange.getRequest().getURI().getRawPath()), exchange);
+	}
+
+	/**
+	 * @return routes that could match the path, in their order
+	 */
+	List<Route> candidates(String rawPath) {
+		List<Integer> matches = new ArrayList<>(this.unindexed);
+		collect(this.root, segments(rawPath), 0, matches);
+		Collections.sort(matches);
+		List<Route> candidates = new ArrayList<>(matches.size());
+		int previous = -1;
+		for (int match : matches) {
+			if (match != previous) {
+				candidates.add(this.routes.get(match));
+				previous = match;
+			}
+		}
+		return candidates;
+	}
+
+	static Mono<Route> firstMatch(Iterable<Route> routes, ServerWebExchange exchange) {
+		return Flux.fromIterable(routes)
+				.concatMap(route -> Mono.just(route)
+						.filterWhen(r -> r.getPredicate().apply(exchange))
+						.doOnError(e -> log.error("Error applying predicate for route: " + route.getId(), e))
+						.onErrorResume(e -> Mono.empty()))
+				.next();
+	}
+
+	private void add(String pattern, int route) {
+		Node node = this.root;
+		for (String segment : segments(pattern)) {
+			if ("**".equals(segment) || segment.startsWith("{*")) {
+				node.rest.add(route);
+				return;
+			}
+			if (isWildcard(segment)) {
+				if (node.wildcard == null) {
+					node.wildcard = new Node();
+				}
+				node = node.wildcard;
+			}
+			else {
+				node = node.literals.computeIfAbsent(segment, s -> new Node());
+			}
+		}
+		node.terminal.add(route);
+	}
+
+	private static void collect(Node node, List<String> segments, int depth, List<Integer> matches) {
+		matches.addAll(node.rest);
+		if (depth == segments.size()) {
+			matches.addAll(node.terminal);
+			return;
+		}
+		// "/apply/" matches "/apply" too
+		if (depth == segments.size() - 1 && segments.get(depth).isEmpty()) {
+			matches.addAll(node.terminal);
+		}
+		Node literal = node.literals.get(segments.get(depth));
+		if (literal != null) {
+			collect(literal, segments, depth + 1, matches);
+		}
+		if (node.wildcard != null) {
+			collect(node.wildcard, segments, depth + 1, matches);
+		}
+	}
+
+	// patterns match decoded segments without their matrix variables
+	private static List<String> segments(String path) {
+		String trimmed = path.startsWith("/") ? path.substring(1) : path;
+		if (trimmed.isEmpty()) {
+			return Collections.emptyList();
+		}
+		String[] split = trimmed.split("/", -1);
+		List<String> segments = new ArrayList<>(split.length);
+		for (String segment : split) {
+			int matrix = segment.indexOf(';');
+			segments.add(StringUtils.uriDecode(matrix < 0 ? segment : segment.substring(0, matrix), StandardCharsets.UTF_8));
+		}
+		return segments;
+	}
+
+	private static boolean isWildcard(String segment) {
+		return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('{') >= 0
+				|| segment.indexOf('%') >= 0 || segment.indexOf(';') >= 0;
+	}
+
+	private static final class Node {
+
+		private final Map<String, Node> literals = new HashMap<>();
+
+		private Node wildcard;
+
+		// routes whose pattern ends here
+		private final List<Integer> terminal = new ArrayList<>();
+
+		// routes whose pattern matches anything from here on
+		private final List<Integer> rest = new ArrayList<>();
+	}
+}
@@ -0,0 +1,120 @@
+package com.example.gateway;
+
+import java.time.Duration;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.test.StepVerifier;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class AdaptiveConcurrencyLimiterTests {
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config(Duration.ofSeconds(5)), "loan", this.meterRegistry);
+
+	@Test
+	void should_let_a_queued_request_go_once_one_in_flight_finishes() {
+		then(this.limiter.acquire().block()).isTrue();
+
+		StepVerifier.create(this.limiter.acquire())
+				.then(() -> then(this.limiter.queued()).isEqualTo(1))
+				.then(() -> this.limiter.release(1_000_000, false))
+				.expectNext(true)
+				.verifyComplete();
+		this.limiter.release(1_000_000, false);
+
+		then(this.limiter.inFlight()).isZero();
+		then(this.limiter.queued()).isZero();
+	}
+
+	@Test
+	void should_reject_a_queued_request_after_the_max_wait() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config(Duration.ofMillis(50)), "loan",
+				this.meterRegistry);
+		then(limiter.acquire().block()).isTrue();
+
+		then(limiter.acquire().block()).isFalse();
+		limiter.release(1_000_000, false);
+
+		then(limiter.inFlight()).isZero();
+		then(limiter.queued()).isZero();
+		then(this.meterRegistry.get("gateway.concurrency.rejected").tag("reason", "timeout").counter().count()).isEqualTo(1);
+	}
+
+	@Test
+	void should_reject_requests_when_the_queue_is_full() {
+		then(this.limiter.acquire().block()).isTrue();
+		Disposable queued = this.limiter.acquire().subscribe();
+
+		then(this.limiter.acquire().block()).isFalse();
+		queued.dispose();
+		this.limiter.release(1_000_000, false);
+
+		then(this.limiter.inFlight()).isZero();
+		then(this.meterRegistry.get("gateway.concurrency.rejected").tag("reason", "queue-full").counter().count()).isEqualTo(1);
+	}
+
+	@Test
+	void should_not_take_a_permit_back_from_a_request_cancelled_while_queued() {
+		then(this.limiter.acquire().block()).isTrue();
+
+		this.limiter.acquire().subscribe().dispose();
+
+		then(this.limiter.queued()).isZero();
+		then(this.limiter.inFlight()).isEqualTo(1);
+		this.limiter.release(1_000_000, false);
+		then(this.limiter.inFlight()).isZero();
+	}
+
+	@Test
+	void should_not_give_back_a_permit_already_handed_over() {
+		then(this.limiter.acquire().block()).isTrue();
+
+		StepVerifier.create(this.limiter.acquire())
+				.then(() -> this.limiter.release(1_000_000, false))
+				.expectNext(true)
+				.thenCancel()
+				.verify();
+
+		then(this.limiter.inFlight()).isEqualTo(1);
+		this.limiter.release(1_000_000, false);
+		then(this.limiter.inFlight()).isZero();
+	}
+
+	@Test
+	void should_share_the_limiter_and_its_meters_across_filters_of_the_same_route() {
+		ConcurrencyLimitGatewayFilterFactory factory = new ConcurrencyLimitGatewayFilterFactory(this.meterRegistry);
+		AdaptiveConcurrencyLimiter limiter = factory.limiter("credit", config(Duration.ofSeconds(5)));
+		then(limiter.acquire().block()).isTrue();
+
+		// the routes got refreshed, with new filters and new limits
+		ConcurrencyLimitGatewayFilterFactory.Config refreshed = config(Duration.ofSeconds(5));
+		refreshed.setMinLimit(3);
+		refreshed.setMaxLimit(10);
+		AdaptiveConcurrencyLimiter rebuilt = factory.limiter("credit", refreshed);
+
+		then(rebuilt).isSameAs(limiter);
+		then(rebuilt.inFlight()).isEqualTo(1);
+		then(rebuilt.limit()).isEqualTo(3);
+		then(this.meterRegistry.get("gateway.concurrency.in.flight").tag("route", "credit").gauge().value()).isEqualTo(1);
+		then(this.meterRegistry.get("gateway.concurrency.limit").tag("route", "credit").gauge().value()).isEqualTo(3);
+		rebuilt.release(1_000_000, false);
+		then(this.meterRegistry.get("gateway.concurrency.in.flight").tag("route", "credit").gauge().value()).isZero();
+	}
+
+	private static ConcurrencyLimitGatewayFilterFactory.Config config(Duration maxWait) {
+		ConcurrencyLimitGatewayFilterFactory.Config config = new ConcurrencyLimitGatewayFilterFactory.Config();
+		config.setInitialLimit(1);
+		config.setMaxLimit(1);
+		config.setMaxQueueSize(1);
+		config.setMaxWait(maxWait);
+		return config;
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.cloud.gateway.filter.ratelimit.RateLimiter;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class LocalRateLimiterTests {
+
+	AtomicLong clock = new AtomicLong(123_456_789L);
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	// 10 tokens a second, i.e. one every 100ms, at most 5 of them
+	LocalRateLimiter limiter = new LocalRateLimiter(properties(10, 5), null, this.meterRegistry, this.clock::get);
+
+	@Test
+	void should_allow_a_burst_of_burst_capacity_requests() {
+		for (int i = 4; i >= 0; i--) {
+			RateLimiter.Response response = isAllowed("marcin");
+			then(response.isAllowed()).isTrue();
+			then(remaining(response)).isEqualTo(i);
+		}
+
+		RateLimiter.Response denied = isAllowed("marcin");
+
+		then(denied.isAllowed()).isFalse();
+		then(remaining(denied)).isZero();
+		then(denied.getHeaders()).containsEntry(LocalRateLimiter.REPLENISH_RATE_HEADER, "10")
+				.containsEntry(LocalRateLimiter.BURST_CAPACITY_HEADER, "5");
+	}
+
+	@Test
+	void should_refill_tokens_at_the_replenish_rate() {
+		drain("marcin", 5);
+
+		advance(99);
+		then(isAllowed("marcin").isAllowed()).isFalse();
+		advance(1);
+		RateLimiter.Response response = isAllowed("marcin");
+		then(response.isAllowed()).isTrue();
+		then(remaining(response)).isZero();
+		then(isAllowed("marcin").isAllowed()).isFalse();
+
+		advance(250);
+		then(remaining(isAllowed("marcin"))).isEqualTo(1);
+	}
+
+	@Test
+	void should_not_refill_beyond_the_burst_capacity() {
+		drain("marcin", 5);
+
+		advance(TimeUnit.MINUTES.toMillis(1));
+
+		drain("marcin", 5);
+		then(isAllowed("marcin").isAllowed()).isFalse();
+	}
+
+	@Test
+	void should_take_the_requested_tokens_per_request() {
+		this.limiter.getConfig().put("loan",
+				new LocalRateLimiter.Config().setReplenishRate(10).setBurstCapacity(5).setRequestedTokens(2));
+
+		then(remaining(this.limiter.isAllowed("loan", "marcin").block())).isEqualTo(3);
+		then(remaining(this.limiter.isAllowed("loan", "marcin").block())).isEqualTo(1);
+		RateLimiter.Response denied = this.limiter.isAllowed("loan", "marcin").block();
+		then(denied.isAllowed()).isFalse();
+		then(remaining(denied)).isEqualTo(1);
+
+		advance(100);
+		then(this.limiter.isAllowed("loan", "marcin").block().isAllowed()).isTrue();
+	}
+
+	@Test
+	void should_keep_a_bucket_per_key() {
+		drain("marcin", 5);
+
+		then(isAllowed("marcin").isAllowed()).isFalse();
+		then(isAllowed("josh").isAllowed()).isTrue();
+	}
+
+	@Test
+	void should_count_allowed_and_denied_requests_per_route() {
+		drain("marcin", 5);
+		isAllowed("marcin");
+
+		then(this.meterRegistry.get("gateway.rate.limiter.requests").tags("route", "credit", "result", "allowed").counter()
+				.count()).isEqualTo(5);
+		then(this.meterRegistry.get("gateway.rate.limiter.requests").tags("route", "credit", "result", "denied").counter()
+				.count()).isEqualTo(1);
+	}
+
+	private RateLimiter.Response isAllowed(String key) {
+		return this.limiter.isAllowed("credit", key).block();
+	}
+
+	private void drain(String key, int requests) {
+		for (int i = 0; i < requests; i++) {
+			then(isAllowed(key).isAllowed()).isTrue();
+		}
+	}
+
+	private void advance(long millis) {
+		this.clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	private static long remaining(RateLimiter.Response response) {
+		return Long.parseLong(response.getHeaders().get(LocalRateLimiter.REMAINING_HEADER));
+	}
+
+	private static RateLimiterProperties properties(int replenishRate, int burstCapacity) {
+		RateLimiterProperties properties = new RateLimiterProperties();
+		properties.setReplenishRate(replenishRate);
+		properties.setBurstCapacity(burstCapacity);
+		return properties;
+	}
+}
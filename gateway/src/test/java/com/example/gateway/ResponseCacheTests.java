@@ -0,0 +1,252 @@
+package com.example.gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.NettyWriteResponseFilter;
+import org.springframework.cloud.gateway.filter.OrderedGatewayFilter;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class ResponseCacheTests {
+
+	AtomicLong nanos = new AtomicLong(123_456_789L);
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	CacheResponseGatewayFilterFactory factory = new CacheResponseGatewayFilterFactory(this.meterRegistry);
+
+	ResponseCaptureFilter captureFilter = new ResponseCaptureFilter();
+
+	AtomicInteger upstreamCalls = new AtomicInteger();
+
+	HttpHeaders upstreamHeaders = new HttpHeaders();
+
+	@Test
+	void should_serve_a_cached_response_without_going_upstream() {
+		GatewayFilter filter = this.factory.apply(config());
+
+		MockServerHttpResponse first = get(filter, "5", new HttpHeaders());
+		MockServerHttpResponse second = get(filter, "4", new HttpHeaders());
+
+		then(this.upstreamCalls).hasValue(1);
+		then(second.getStatusCode()).isEqualTo(HttpStatus.OK);
+		then(second.getBodyAsString().block()).isEqualTo(first.getBodyAsString().block()).isEqualTo("report 1");
+		then(second.getHeaders().getFirst("X-Report")).isEqualTo("1");
+		then(second.getHeaders().getFirst("Age")).isEqualTo("0");
+		// the rate limiter headers are those of the request that got served from the cache
+		then(second.getHeaders().get("X-RateLimit-Remaining")).containsExactly("4");
+	}
+
+	@Test
+	void should_go_upstream_for_requests_that_ask_for_no_cache() {
+		GatewayFilter filter = this.factory.apply(config());
+		HttpHeaders noCache = new HttpHeaders();
+		noCache.setCacheControl("no-cache");
+
+		get(filter, "5", new HttpHeaders());
+		get(filter, "4", noCache);
+
+		then(this.upstreamCalls).hasValue(2);
+	}
+
+	@Test
+	void should_not_cache_responses_that_ask_for_it() {
+		GatewayFilter filter = this.factory.apply(config());
+		this.upstreamHeaders.setCacheControl("no-store");
+
+		get(filter, "5", new HttpHeaders());
+		get(filter, "4", new HttpHeaders());
+
+		then(this.upstreamCalls).hasValue(2);
+	}
+
+	@Test
+	void should_expire_responses_after_the_ttl() {
+		ResponseCache cache = cache(config());
+		cache.put("/reports/1", new HttpHeaders(), HttpStatus.OK, new HttpHeaders(), bytes("report 1"),
+				cache.ttlNanos(HttpStatus.OK, new HttpHeaders()));
+
+		advance(TimeUnit.SECONDS.toNanos(30) - 1);
+		then(cache.get("/reports/1", new HttpHeaders())).isNotNull();
+		advance(1);
+		then(cache.get("/reports/1", new HttpHeaders())).isNull();
+	}
+
+	@Test
+	void should_expire_responses_at_their_max_age_when_it_is_shorter_than_the_ttl() {
+		ResponseCache cache = cache(config());
+		HttpHeaders headers = new HttpHeaders();
+		headers.setCacheControl("public, max-age=5");
+		cache.put("/reports/1", new HttpHeaders(), HttpStatus.OK, headers, bytes("report 1"),
+				cache.ttlNanos(HttpStatus.OK, headers));
+
+		advance(TimeUnit.SECONDS.toNanos(5) - 1);
+		then(cache.get("/reports/1", new HttpHeaders())).isNotNull();
+		advance(1);
+		then(cache.get("/reports/1", new HttpHeaders())).isNull();
+	}
+
+	@Test
+	void should_take_the_cache_lifetime_from_cache_control() {
+		ResponseCache cache = cache(config());
+
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("max-age=5"))).isEqualTo(TimeUnit.SECONDS.toNanos(5));
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("max-age=5, s-maxage=10"))).isEqualTo(TimeUnit.SECONDS.toNanos(10));
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("max-age=3600"))).isEqualTo(TimeUnit.SECONDS.toNanos(30));
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("max-age=0"))).isZero();
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("max-age=soon"))).isZero();
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("no-store"))).isZero();
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("No-Cache"))).isZero();
+		then(cache.ttlNanos(HttpStatus.OK, cacheControl("private, max-age=5"))).isZero();
+		then(cache.ttlNanos(HttpStatus.NOT_FOUND, new HttpHeaders())).isZero();
+		HttpHeaders cookie = new HttpHeaders();
+		cookie.add(HttpHeaders.SET_COOKIE, "session=1");
+		then(cache.ttlNanos(HttpStatus.OK, cookie)).isZero();
+		HttpHeaders varyOnEverything = new HttpHeaders();
+		varyOnEverything.setVary(Collections.singletonList("*"));
+		then(cache.ttlNanos(HttpStatus.OK, varyOnEverything)).isZero();
+	}
+
+	@Test
+	void should_keep_responses_per_value_of_the_headers_they_vary_on() {
+		ResponseCache cache = cache(config());
+		HttpHeaders headers = new HttpHeaders();
+		headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT_LANGUAGE));
+		HttpHeaders english = language("en");
+		HttpHeaders german = language("de");
+
+		cache.put("/reports/1", english, HttpStatus.OK, headers, bytes("report"), TimeUnit.SECONDS.toNanos(30));
+
+		then(cache.get("/reports/1", english)).isNotNull();
+		then(cache.get("/reports/1", german)).isNull();
+		then(cache.get("/reports/1", new HttpHeaders())).isNull();
+
+		cache.put("/reports/1", german, HttpStatus.OK, headers, bytes("Bericht"), TimeUnit.SECONDS.toNanos(30));
+
+		then(cache.get("/reports/1", english)).isNotNull();
+		then(cache.get("/reports/1", german)).isNotNull();
+	}
+
+	@Test
+	void should_not_store_hop_by_hop_and_per_request_headers() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.add(HttpHeaders.CONTENT_TYPE, "application/json");
+		headers.add(HttpHeaders.ETAG, "\"1\"");
+		headers.add(HttpHeaders.CONNECTION, "keep-alive, X-Upstream-Hop");
+		headers.add("Keep-Alive", "timeout=5");
+		headers.add("X-Upstream-Hop", "1");
+		headers.add(HttpHeaders.TRANSFER_ENCODING, "chunked");
+		headers.add(HttpHeaders.UPGRADE, "h2c");
+		headers.add("Age", "3");
+		headers.add(LocalRateLimiter.REMAINING_HEADER, "4");
+		headers.add(LocalRateLimiter.REPLENISH_RATE_HEADER, "10");
+		headers.add(LocalRateLimiter.BURST_CAPACITY_HEADER, "5");
+
+		HttpHeaders stored = ResponseCache.storable(headers);
+
+		then(stored.keySet()).containsExactlyInAnyOrder(HttpHeaders.CONTENT_TYPE, HttpHeaders.ETAG);
+	}
+
+	@Test
+	void should_decorate_the_response_before_it_gets_written_and_look_up_where_the_route_lists_it() {
+		then(this.captureFilter.getOrder()).isLessThan(NettyWriteResponseFilter.WRITE_RESPONSE_FILTER_ORDER);
+		// routes give filters that aren't ordered their position, e.g. after RequestRateLimiter
+		then(this.factory.apply(config())).isNotInstanceOf(Ordered.class);
+	}
+
+	@Test
+	void should_share_the_cache_and_its_meters_across_filters_of_the_same_route() {
+		get(this.factory.apply(config()), "5", new HttpHeaders());
+		// the routes got refreshed, with new filters
+		MockServerHttpResponse response = get(this.factory.apply(config()), "4", new HttpHeaders());
+
+		then(this.upstreamCalls).hasValue(1);
+		then(response.getBodyAsString().block()).isEqualTo("report 1");
+		then(this.meterRegistry.get("cache.gets").tag("route", "reports").tag("result", "hit").functionCounter().count())
+				.isEqualTo(1);
+		then(this.meterRegistry.get("cache.size").tag("route", "reports").gauge().value()).isEqualTo(1);
+	}
+
+	private MockServerHttpResponse get(GatewayFilter filter, String remaining, HttpHeaders requestHeaders) {
+		ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("http://localhost/reports/1")
+				.headers(requestHeaders));
+		exchange.getAttributes().put(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR, Route.async()
+				.id("reports")
+				.uri("http://localhost:9080")
+				.predicate(e -> true)
+				.filter(new OrderedGatewayFilter(filter, 2))
+				.build());
+		// as RequestRateLimiter, listed before the cache, would
+		GatewayFilterChain rateLimited = limited -> {
+			limited.getResponse().getHeaders().set(LocalRateLimiter.REMAINING_HEADER, remaining);
+			return filter.filter(limited, upstream());
+		};
+		this.captureFilter.filter(exchange, rateLimited).block();
+		return (MockServerHttpResponse) exchange.getResponse();
+	}
+
+	private GatewayFilterChain upstream() {
+		return exchange -> {
+			int call = this.upstreamCalls.incrementAndGet();
+			exchange.getResponse().setStatusCode(HttpStatus.OK);
+			exchange.getResponse().getHeaders().addAll(this.upstreamHeaders);
+			exchange.getResponse().getHeaders().set("X-Report", String.valueOf(call));
+			return exchange.getResponse().writeWith(Mono.just(exchange.getResponse().bufferFactory()
+					.wrap(bytes("report " + call))));
+		};
+	}
+
+	private CacheResponseGatewayFilterFactory.Config config() {
+		CacheResponseGatewayFilterFactory.Config config = new CacheResponseGatewayFilterFactory.Config();
+		config.setTtl(Duration.ofSeconds(30));
+		return config;
+	}
+
+	private ResponseCache cache(CacheResponseGatewayFilterFactory.Config config) {
+		return new ResponseCache(config, "reports", this.meterRegistry, this.nanos::get);
+	}
+
+	private void advance(long nanos) {
+		this.nanos.addAndGet(nanos);
+	}
+
+	private static HttpHeaders cacheControl(String cacheControl) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setCacheControl(cacheControl);
+		return headers;
+	}
+
+	private static HttpHeaders language(String language) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT_LANGUAGE, language);
+		return headers;
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,104 @@
+package com.example.gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.springframework.cloud.gateway.handler.predicate.PathRoutePredicateFactory;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+
+/**
+ * Compares matching a request against the {@code Path} predicates of all routes, one
+ * after the other as the gateway does, with matching it against the candidates of the
+ * {@link RouteIndex}. The index lookup should stay flat as the number of routes grows.
+ *
+ * Run with {@code ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.gateway.RouteIndexBenchmark} or from the IDE.
+ *
+ * @author Marcin Grzejszczak
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteIndexBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	int size;
+
+	List<Route> routes;
+
+	RouteIndex index;
+
+	String lastPath;
+
+	String absentPath = "/unknown/resource";
+
+	@Setup
+	public void setup() {
+		PathRoutePredicateFactory factory = new PathRoutePredicateFactory();
+		this.routes = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			String pattern = "/service-" + i + "/**";
+			this.routes.add(Route.async()
+					.id("service-" + i)
+					.uri("http://localhost:9080")
+					.predicate(factory.apply(config -> config.setPatterns(Collections.singletonList(pattern))))
+					.metadata(RouteIndex.PATHS, Collections.singletonList(pattern))
+					.build());
+		}
+		this.index = new RouteIndex(this.routes);
+		this.lastPath = "/service-" + (this.size - 1) + "/resource";
+	}
+
+	@Benchmark
+	public Route predicatesLast() {
+		return RouteIndex.firstMatch(this.routes, exchange(this.lastPath)).block();
+	}
+
+	@Benchmark
+	public Route indexLast() {
+		return this.index.lookup(exchange(this.lastPath)).block();
+	}
+
+	@Benchmark
+	public Route predicatesAbsent() {
+		return RouteIndex.firstMatch(this.routes, exchange(this.absentPath)).block();
+	}
+
+	@Benchmark
+	public Route indexAbsent() {
+		return this.index.lookup(exchange(this.absentPath)).block();
+	}
+
+	private static MockServerWebExchange exchange(String path) {
+		return MockServerWebExchange.from(MockServerHttpRequest.get(path));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RouteIndexBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
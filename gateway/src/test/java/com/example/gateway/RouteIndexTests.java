@@ -0,0 +1,233 @@
+package com.example.gateway;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.cloud.gateway.config.GlobalCorsProperties;
+import org.springframework.cloud.gateway.handler.FilteringWebHandler;
+import org.springframework.cloud.gateway.handler.predicate.PathRoutePredicateFactory;
+import org.springframework.cloud.gateway.handler.predicate.PredicateDefinition;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.route.RouteDefinition;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * Every lookup is compared with evaluating the predicates of all routes in order,
+ * which is what the gateway does without the index.
+ *
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class RouteIndexTests {
+
+	PathRoutePredicateFactory factory = new PathRoutePredicateFactory();
+
+	List<Route> routes = new ArrayList<>();
+
+	@Test
+	void should_match_with_and_without_a_trailing_slash() {
+		pathRoute("apply", "/apply");
+		pathRoute("credit", "/credit/");
+
+		thenMatchesLikePredicates("/apply", "/apply/", "/apply//", "/credit", "/credit/", "/", "");
+		then(match("/apply/")).isEqualTo("apply");
+	}
+
+	@Test
+	void should_match_the_rest_of_the_path() {
+		pathRoute("loan", "/apply/**");
+		pathRoute("credit", "/credit/{*rest}");
+		pathRoute("all", "/**");
+
+		thenMatchesLikePredicates("/apply", "/apply/", "/apply/loan", "/apply/loan/1/2", "/credit", "/credit/v1/charges",
+				"/other", "/");
+		then(match("/apply/loan/1")).isEqualTo("loan");
+		then(match("/credit/v1/charges")).isEqualTo("credit");
+		then(match("/other")).isEqualTo("all");
+	}
+
+	@Test
+	void should_match_path_variables_and_wildcards() {
+		pathRoute("fraud", "/frauds/{name}");
+		pathRoute("json", "/frauds/{name}.json/details");
+		pathRoute("prefix", "/fr*/changes");
+		pathRoute("single", "/fraud?/count");
+
+		thenMatchesLikePredicates("/frauds/marcin", "/frauds/marcin/", "/frauds/marcin/x", "/frauds/marcin.json/details",
+				"/frauds/changes", "/fraudsters/changes", "/frauds/count", "/fraud/count", "/frauds");
+		then(match("/frauds/marcin")).isEqualTo("fraud");
+		then(match("/fraudsters/changes")).isEqualTo("prefix");
+	}
+
+	@Test
+	void should_match_encoded_and_matrix_segments() {
+		pathRoute("cafe", "/café/menu");
+		pathRoute("loan", "/apply/loan");
+		pathRoute("fraud", "/frauds/{name}");
+
+		thenMatchesLikePredicates("/caf%C3%A9/menu", "/café/menu", "/apply/loan;version=1", "/apply;v=2/loan",
+				"/frauds/marcin%20g", "/frauds/marcin;since=1", "/apply%2Floan");
+		then(match("/apply/loan;version=1")).isEqualTo("loan");
+	}
+
+	@Test
+	void should_keep_the_order_of_routes_without_a_path_predicate() {
+		route("posts", exchange -> exchange.getRequest().getMethod() == HttpMethod.POST);
+		pathRoute("loan", "/apply/**");
+		route("everything", exchange -> true);
+		pathRoute("credit", "/credit/**");
+
+		thenMatchesLikePredicates("/apply/loan", "/credit/charges", "/other");
+		then(match("/credit/charges")).isEqualTo("everything");
+		then(matchPost("/apply/loan")).isEqualTo("posts");
+		then(index().candidates("/other")).extracting(Route::getId).containsExactly("posts", "everything");
+	}
+
+	@Test
+	void should_index_routes_by_their_own_paths_when_they_share_an_id() {
+		// e.g. a route defined in code with the id of one from the configuration
+		Route code = route("loan", exchange -> exchange.getRequest().getURI().getPath().startsWith("/code"));
+		Route configured = pathRoute("loan", "/apply/**");
+		pathRoute("credit", "/credit/**");
+
+		thenMatchesLikePredicates("/code/loan", "/apply/loan", "/credit/charges");
+		then(index().candidates("/code/loan")).containsExactly(code);
+		then(index().candidates("/apply/loan")).containsExactly(code, configured);
+	}
+
+	@Test
+	void should_reindex_the_routes_once_they_got_refreshed() {
+		IndexedRoutePredicateHandlerMapping mapping = new IndexedRoutePredicateHandlerMapping(
+				new FilteringWebHandler(Collections.emptyList()), () -> Flux.fromIterable(this.routes),
+				new GlobalCorsProperties(), new MockEnvironment());
+		pathRoute("loan", "/apply/**");
+		pathRoute("fraud", "/frauds/**");
+		then(lookup(mapping, "/apply/loan")).isEqualTo("loan");
+		then(lookup(mapping, "/frauds/marcin")).isEqualTo("fraud");
+
+		// as the gateway rebuilds all of them on refresh
+		this.routes.clear();
+		pathRoute("credit", "/credit/**");
+		pathRoute("loan", "/loans/**");
+
+		then(lookup(mapping, "/credit/charges")).isEqualTo("credit");
+		then(lookup(mapping, "/loans/1")).isEqualTo("loan");
+		then(lookup(mapping, "/apply/loan")).isNull();
+		then(lookup(mapping, "/frauds/marcin")).isNull();
+	}
+
+	@Test
+	void should_keep_the_index_while_the_routes_stay_the_same() {
+		IndexedRoutePredicateHandlerMapping mapping = new IndexedRoutePredicateHandlerMapping(
+				new FilteringWebHandler(Collections.emptyList()), () -> Flux.fromIterable(this.routes),
+				new GlobalCorsProperties(), new MockEnvironment());
+		pathRoute("loan", "/apply/**");
+
+		then(mapping.index(new ArrayList<>(this.routes))).isSameAs(mapping.index(new ArrayList<>(this.routes)));
+	}
+
+	@Test
+	void should_copy_the_paths_of_a_definition_into_its_metadata() {
+		RouteDefinition definition = definition("loan", "/apply/**", "/loans/{id}");
+		definition.getMetadata().put("response-timeout", 200);
+		definition.getMetadata().put(RouteIndex.PATHS, Collections.singletonList("/stale/**"));
+
+		RouteDefinition indexed = RouteIndex.withPaths(definition);
+
+		then(indexed.getMetadata()).containsEntry(RouteIndex.PATHS, Arrays.asList("/apply/**", "/loans/{id}"))
+				.containsEntry("response-timeout", 200);
+		then(definition.getMetadata()).containsEntry(RouteIndex.PATHS, Collections.singletonList("/stale/**"));
+		then(RouteIndex.withPaths(definition("posts")).getMetadata()).doesNotContainKey(RouteIndex.PATHS);
+	}
+
+	@Test
+	void should_match_like_predicates_with_all_kinds_of_routes_together() {
+		pathRoute("apply", "/apply");
+		route("posts", exchange -> exchange.getRequest().getMethod() == HttpMethod.POST);
+		pathRoute("loan", "/apply/**", "/loans/{id}");
+		pathRoute("fraud", "/frauds/{name}");
+		pathRoute("prefix", "/fr*/changes");
+		pathRoute("credit", "/credit/{*rest}");
+		pathRoute("loan", "/apply/loan");
+		pathRoute("all", "/**");
+
+		thenMatchesLikePredicates("/apply", "/apply/", "/apply/loan", "/loans/1", "/loans/1/2", "/frauds/marcin",
+				"/frauds/marcin;since=1", "/fraudsters/changes", "/credit", "/credit/v1/charges", "/other", "/", "");
+	}
+
+	// as the gateway builds routes from their definitions
+	private Route pathRoute(String id, String... patterns) {
+		Route route = Route.async(RouteIndex.withPaths(definition(id, patterns)))
+				.predicate(this.factory.apply(config -> config.setPatterns(Arrays.asList(patterns))))
+				.build();
+		this.routes.add(route);
+		return route;
+	}
+
+	private Route route(String id, Predicate<ServerWebExchange> predicate) {
+		Route route = Route.async().id(id).uri("http://localhost:9080").predicate(predicate).build();
+		this.routes.add(route);
+		return route;
+	}
+
+	private static RouteDefinition definition(String id, String... patterns) {
+		RouteDefinition definition = new RouteDefinition();
+		definition.setId(id);
+		definition.setUri(URI.create("http://localhost:9080"));
+		if (patterns.length > 0) {
+			definition.setPredicates(Collections.singletonList(new PredicateDefinition("Path=" + String.join(",", patterns))));
+		}
+		return definition;
+	}
+
+	private RouteIndex index() {
+		return new RouteIndex(this.routes);
+	}
+
+	private static String lookup(IndexedRoutePredicateHandlerMapping mapping, String path) {
+		Route route = mapping.lookupRoute(exchange(HttpMethod.GET, path)).block();
+		return route != null ? route.getId() : null;
+	}
+
+	private void thenMatchesLikePredicates(String... paths) {
+		RouteIndex index = index();
+		for (String path : paths) {
+			for (HttpMethod method : Arrays.asList(HttpMethod.GET, HttpMethod.POST)) {
+				Route linear = RouteIndex.firstMatch(this.routes, exchange(method, path)).block();
+				Route indexed = index.lookup(exchange(method, path)).block();
+				then(indexed).as("route of %s %s", method, path).isSameAs(linear);
+				if (linear != null) {
+					then(index.candidates(exchange(method, path).getRequest().getURI().getRawPath()))
+							.as("candidates of %s", path).contains(linear);
+				}
+			}
+		}
+	}
+
+	private String match(String path) {
+		Route route = index().lookup(exchange(HttpMethod.GET, path)).block();
+		return route != null ? route.getId() : null;
+	}
+
+	private String matchPost(String path) {
+		Route route = index().lookup(exchange(HttpMethod.POST, path)).block();
+		return route != null ? route.getId() : null;
+	}
+
+	private static MockServerWebExchange exchange(HttpMethod method, String path) {
+		return MockServerWebExchange.from(MockServerHttpRequest.method(method, path));
+	}
+}
@@ -0,0 +1,90 @@
+package com.example.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+import brave.CurrentSpanCustomizer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.springframework.mock.env.MockEnvironment;
+
+/**
+ * Compares the time the proxy path spends on a queried URI when the span, the log line
+ * and the event are done inline, as the filter used to do, with just sampling it and
+ * handing it over to the {@link UriQueriedEmitter}'s queue.
+ *
+ * Run with {@code ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.gateway.SendAMessageFilterBenchmark} or from the IDE.
+ *
+ * @author Marcin Grzejszczak
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendAMessageFilterBenchmark {
+
+	@Param({ "1.0", "0.1" })
+	double sampleRate;
+
+	Tracing tracing;
+
+	UriQueriedEmitter emitter;
+
+	TraceContext parent;
+
+	String uri = "http://localhost:9083/credit/charges";
+
+	@Setup
+	public void setup() {
+		this.tracing = Tracing.newBuilder().build();
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		EventDispatchProperties properties = new EventDispatchProperties();
+		properties.setSampleRate(this.sampleRate);
+		this.emitter = new UriQueriedEmitter(new MockEnvironment().withProperty("spring.application.name", "proxy"),
+				new BoundedEventSink<>(new EventBufferProperties(), meterRegistry), this.tracing.tracer(),
+				CurrentSpanCustomizer.create(this.tracing), properties, meterRegistry);
+		this.parent = this.tracing.tracer().nextSpan().context();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		this.emitter.destroy();
+		this.tracing.close();
+	}
+
+	@Benchmark
+	public void inline() {
+		this.emitter.send(this.uri, this.parent);
+	}
+
+	@Benchmark
+	public void handOff() {
+		this.emitter.uriQueriedForUri("credit", this.uri, this.parent);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(SendAMessageFilterBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
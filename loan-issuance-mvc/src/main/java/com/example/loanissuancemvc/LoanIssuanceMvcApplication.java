@@ -1,12 +1,26 @@
 package com.example.loanissuancemvc;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.client.circuitbreaker.CircuitBreakerFactory;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.cloud.gateway.mvc.ProxyExchange;
@@ -17,6 +31,7 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -25,6 +40,7 @@ import org.springframework.web.client.RestTemplate;
 
 @EnableFeignClients
 @SpringBootApplication
+@EnableConfigurationProperties({ FraudIndexProperties.class, FraudCheckProperties.class })
 public class LoanIssuanceMvcApplication {
 
 	public static void main(String[] args) {
@@ -43,6 +59,22 @@ public class LoanIssuanceMvcApplication {
 		return new RestTemplate();
 	}
 
+	@Bean
+	FraudChecker fraudChecker(FraudCheckProperties checkProperties, FraudClient fraudClient, CircuitBreakerFactory factory,
+			FraudIndexProperties properties, MeterRegistry meterRegistry) {
+		if (checkProperties.getMode() == FraudCheckProperties.Mode.FILTER) {
+			ExpiringHolder<BloomFilter> filter = new ExpiringHolder<>(() -> {
+				FraudFilter fraudFilter = factory.create("fraud").run(fraudClient::filter);
+				return fraudFilter != null ? BloomFilter.from(fraudFilter) : null;
+			}, properties);
+			return new FilterFraudChecker(filter, name -> factory.create("fraud").run(() -> fraudClient.fraud(name).isFraud()), meterRegistry);
+		}
+		return new IndexFraudChecker(new ExpiringHolder<>(() -> {
+			List<String> frauds = factory.create("fraud").run(fraudClient::frauds);
+			return frauds != null ? FraudIndex.of(frauds, properties.isNormalizeNames()) : null;
+		}, properties));
+	}
+
 }
 
 @RestController
@@ -63,24 +95,22 @@ class LoanIssuanceController {
 
 	private final CircuitBreakerFactory factory;
 
-	private final FraudClient fraudClient;
+	private final FraudChecker fraudChecker;
 
 	private final ExternalClient externalClient;
 
-	LoanIssuanceController(@LoadBalanced RestTemplate restTemplate, CircuitBreakerFactory factory, FraudClient fraudClient, ExternalClient externalClient) {
+	LoanIssuanceController(@LoadBalanced RestTemplate restTemplate, CircuitBreakerFactory factory, FraudChecker fraudChecker, ExternalClient externalClient) {
 		this.restTemplate = restTemplate;
 		this.factory = factory;
-		this.fraudClient = fraudClient;
+		this.fraudChecker = fraudChecker;
 		this.externalClient = externalClient;
 	}
 
 	@PostMapping("/loan")
-	@SuppressWarnings("unchecked")
 	ResponseEntity frauds(@RequestBody LoanApplication loanApplication) {
-		log.info("\n\nGot loan/ request\n\n");
+		log.info("Got loan/ request");
 //		List frauds =  factory.create("fraud").run(() -> this.restTemplate.getForObject("http://fraud-detection/frauds", List.class));
-		List frauds = factory.create("fraud").run(fraudClient::frauds);
-		if (frauds != null && !frauds.contains(loanApplication.getName())) {
+		if (!this.fraudChecker.isFraud(loanApplication.getName())) {
 			return ResponseEntity.status(HttpStatus.OK).body("LOAN_GRANTED");
 		}
 		return ResponseEntity.status(HttpStatus.FORBIDDEN).body("LOAN_REJECTED");
@@ -88,14 +118,14 @@ class LoanIssuanceController {
 
 	@GetMapping("/circuit/fail")
 	String fail() throws InterruptedException {
-		log.info("\n\nGot failure example\n\n");
+		log.info("Got failure example");
 		Thread.sleep(100);
 		return factory.create("fraud-fail").run(() -> this.restTemplate.getForObject("http://fraud-detection/fraudsasjkdhasjd", String.class));
 	}
 
 	@GetMapping("/circuit/fallback")
 	String failFallback() throws InterruptedException {
-		log.info("\n\nGot fallback example\n\n");
+		log.info("Got fallback example");
 		Thread.sleep(100);
 		return factory.create("fraud-fail").run(() -> this.restTemplate.getForObject("http://fraud-detection/fraudsasjkdhasjd", String.class), throwable -> "fallback");
 	}
@@ -111,6 +141,394 @@ interface FraudClient {
 
 	@GetMapping("/frauds")
 	List<String> frauds();
+
+	@GetMapping("/frauds/{name}")
+	FraudCheck fraud(@PathVariable("name") String name);
+
+	@GetMapping("/filters/frauds")
+	FraudFilter filter();
+}
+
+@ConfigurationProperties("fraud.index")
+class FraudIndexProperties {
+
+	/**
+	 * How long a fetched fraud list (or bloom filter) is reused before it gets fetched
+	 * again.
+	 */
+	private Duration ttl = Duration.ofSeconds(10);
+
+	/**
+	 * Whether names should be trimmed and lower cased before being indexed and
+	 * looked up.
+	 */
+	private boolean normalizeNames = false;
+
+	public Duration getTtl() {
+		return this.ttl;
+	}
+
+	public void setTtl(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	public boolean isNormalizeNames() {
+		return this.normalizeNames;
+	}
+
+	public void setNormalizeNames(boolean normalizeNames) {
+		this.normalizeNames = normalizeNames;
+	}
+}
+
+@ConfigurationProperties("fraud.check")
+class FraudCheckProperties {
+
+	/**
+	 * How loan applications are checked against the fraud list. {@code list} keeps the
+	 * whole list locally, {@code filter} keeps only a bloom filter and asks
+	 * fraud-detection about names the filter might contain.
+	 */
+	private Mode mode = Mode.LIST;
+
+	public Mode getMode() {
+		return this.mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	enum Mode {
+
+		LIST, FILTER
+
+	}
+}
+
+/**
+ * Holds the last loaded value and loads it again once the ttl has passed.
+ */
+class ExpiringHolder<T> {
+
+	private final Supplier<T> loader;
+
+	private final FraudIndexProperties properties;
+
+	private volatile Loaded<T> loaded;
+
+	ExpiringHolder(Supplier<T> loader, FraudIndexProperties properties) {
+		this.loader = loader;
+		this.properties = properties;
+	}
+
+	/**
+	 * @return the current value or {@code null} if it couldn't be loaded
+	 */
+	T get() {
+		Loaded<T> current = this.loaded;
+		if (current != null && !current.isExpired(this.properties.getTtl())) {
+			return current.value;
+		}
+		synchronized (this) {
+			current = this.loaded;
+			if (current != null && !current.isExpired(this.properties.getTtl())) {
+				return current.value;
+			}
+			T value = this.loader.get();
+			if (value == null) {
+				return null;
+			}
+			this.loaded = new Loaded<>(value, System.nanoTime());
+			return value;
+		}
+	}
+
+	/**
+	 * @return the last loaded value without triggering a load
+	 */
+	T current() {
+		Loaded<T> current = this.loaded;
+		return current != null ? current.value : null;
+	}
+
+	private static class Loaded<T> {
+
+		private final T value;
+
+		private final long loadedAt;
+
+		Loaded(T value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+
+		boolean isExpired(Duration ttl) {
+			return System.nanoTime() - this.loadedAt >= ttl.toNanos();
+		}
+	}
+}
+
+interface FraudChecker {
+
+	boolean isFraud(String name);
+}
+
+class IndexFraudChecker implements FraudChecker {
+
+	private final ExpiringHolder<FraudIndex> frauds;
+
+	IndexFraudChecker(ExpiringHolder<FraudIndex> frauds) {
+		this.frauds = frauds;
+	}
+
+	@Override
+	public boolean isFraud(String name) {
+		FraudIndex frauds = this.frauds.get();
+		// no list means we can't tell, so we'd rather not grant the loan
+		return frauds == null || frauds.contains(name);
+	}
+}
+
+/**
+ * Checks names against a locally kept bloom filter and only asks fraud-detection when
+ * the filter says that the name might be a fraud.
+ */
+class FilterFraudChecker implements FraudChecker {
+
+	private final ExpiringHolder<BloomFilter> filter;
+
+	private final FraudChecker remote;
+
+	private final Counter negatives;
+
+	private final Counter positives;
+
+	private final Counter falsePositives;
+
+	FilterFraudChecker(ExpiringHolder<BloomFilter> filter, FraudChecker remote, MeterRegistry meterRegistry) {
+		this.filter = filter;
+		this.remote = remote;
+		this.negatives = meterRegistry.counter("fraud.filter.checks", "result", "negative");
+		this.positives = meterRegistry.counter("fraud.filter.checks", "result", "maybe");
+		this.falsePositives = meterRegistry.counter("fraud.filter.false.positives");
+		Gauge.builder("fraud.filter.size", filter, f -> f.current() != null ? f.current().sizeInBytes() : Double.NaN)
+				.description("Size of the local fraud bloom filter")
+				.baseUnit("bytes")
+				.register(meterRegistry);
+		Gauge.builder("fraud.filter.false.positive.rate", filter, f -> f.current() != null ? f.current().falsePositiveRate() : Double.NaN)
+				.description("Expected false positive rate of the local fraud bloom filter")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public boolean isFraud(String name) {
+		BloomFilter filter = this.filter.get();
+		if (filter != null && !filter.mightContain(name)) {
+			this.negatives.increment();
+			return false;
+		}
+		this.positives.increment();
+		boolean fraud = this.remote.isFraud(name);
+		if (!fraud && filter != null) {
+			this.falsePositives.increment();
+		}
+		return fraud;
+	}
+}
+
+/**
+ * Hash based index over the fraud list. It's built once per fetched list so that
+ * checking a name is a single hash lookup, no matter how long the list is.
+ */
+class FraudIndex {
+
+	private final Set<String> names;
+
+	private final boolean normalize;
+
+	private FraudIndex(Set<String> names, boolean normalize) {
+		this.names = names;
+		this.normalize = normalize;
+	}
+
+	static FraudIndex of(Collection<String> frauds, boolean normalize) {
+		Set<String> names = new HashSet<>(Math.max(16, (int) (frauds.size() / .75f) + 1));
+		for (String fraud : frauds) {
+			if (fraud != null) {
+				names.add(normalize ? normalize(fraud) : fraud);
+			}
+		}
+		return new FraudIndex(names, normalize);
+	}
+
+	boolean contains(String name) {
+		if (name == null) {
+			return false;
+		}
+		return this.names.contains(this.normalize ? normalize(name) : name);
+	}
+
+	int size() {
+		return this.names.size();
+	}
+
+	private static String normalize(String name) {
+		return name.trim().toLowerCase(Locale.ROOT);
+	}
+}
+
+/**
+ * Bloom filter over the fraud list as published by fraud-detection under
+ * {@code /filters/frauds}. Names must be hashed exactly as fraud-detection does.
+ */
+class BloomFilter {
+
+	private final String version;
+
+	private final double falsePositiveRate;
+
+	private final long[] bits;
+
+	private final long numBits;
+
+	private final int numHashFunctions;
+
+	private BloomFilter(String version, double falsePositiveRate, long[] bits, long numBits, int numHashFunctions) {
+		this.version = version;
+		this.falsePositiveRate = falsePositiveRate;
+		this.bits = bits;
+		this.numBits = numBits;
+		this.numHashFunctions = numHashFunctions;
+	}
+
+	static BloomFilter from(FraudFilter filter) {
+		ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(filter.getBits()));
+		long[] bits = new long[buffer.remaining() / Long.BYTES];
+		buffer.asLongBuffer().get(bits);
+		return new BloomFilter(filter.getVersion(), filter.getFalsePositiveRate(), bits, filter.getNumBits(), filter.getNumHashFunctions());
+	}
+
+	boolean mightContain(String name) {
+		if (name == null) {
+			return false;
+		}
+		long hash1 = hash(name);
+		long hash2 = secondHash(hash1);
+		for (int i = 0; i < this.numHashFunctions; i++) {
+			long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+			if ((this.bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String version() {
+		return this.version;
+	}
+
+	double falsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	long sizeInBytes() {
+		return this.bits.length * (long) Long.BYTES;
+	}
+
+	private static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static long secondHash(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash | 1;
+	}
+}
+
+class FraudFilter {
+
+	private String version;
+
+	private double falsePositiveRate;
+
+	private long numBits;
+
+	private int numHashFunctions;
+
+	private String bits;
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public double getFalsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	public long getNumBits() {
+		return this.numBits;
+	}
+
+	public void setNumBits(long numBits) {
+		this.numBits = numBits;
+	}
+
+	public int getNumHashFunctions() {
+		return this.numHashFunctions;
+	}
+
+	public void setNumHashFunctions(int numHashFunctions) {
+		this.numHashFunctions = numHashFunctions;
+	}
+
+	public String getBits() {
+		return this.bits;
+	}
+
+	public void setBits(String bits) {
+		this.bits = bits;
+	}
+}
+
+class FraudCheck {
+
+	private String name;
+
+	private boolean fraud;
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public boolean isFraud() {
+		return this.fraud;
+	}
+
+	public void setFraud(boolean fraud) {
+		this.fraud = fraud;
+	}
 }
 
 @FeignClient(name = "google", url = "https://www.google.com/")
@@ -1,31 +1,61 @@
 package com.example.loanissuance;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import brave.propagation.ExtraFieldPropagation;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
 import io.github.resilience4j.timelimiter.TimeLimiterConfig;
 import io.micrometer.core.annotation.Counted;
 import io.micrometer.core.annotation.Timed;
 import io.micrometer.core.aop.CountedAspect;
 import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reactor.core.publisher.EmitterProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.codec.CodecCustomizer;
 import org.springframework.cloud.circuitbreaker.resilience4j.Resilience4JCircuitBreakerFactory;
 import org.springframework.cloud.circuitbreaker.resilience4j.Resilience4JConfigBuilder;
 import org.springframework.cloud.client.ServiceInstance;
@@ -41,11 +71,20 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.annotation.Order;
 import org.springframework.core.env.Environment;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.util.MimeType;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -54,6 +93,7 @@ import org.springframework.web.reactive.function.client.WebClient;
 
 @SpringBootApplication
 @EnableAsync
+@EnableConfigurationProperties({ FraudCacheProperties.class, FraudCheckProperties.class, EventBufferProperties.class, EventBatchProperties.class, EventFormatProperties.class })
 public class LoanIssuanceApplication {
 
 	public static void main(String[] args) {
@@ -86,6 +126,27 @@ public class LoanIssuanceApplication {
 	CountedAspect countedAspect(MeterRegistry registry) {
 		return new CountedAspect(registry);
 	}
+
+	// Lets the batch endpoint read and write application/x-ndjson next to
+	// application/stream+json and the default JSON types, application/*+json among them;
+	// runs after Boot's own Jackson codec customizer
+	@Bean
+	@Order(1)
+	CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+		return configurer -> {
+			Jackson2JsonEncoder defaultEncoder = new Jackson2JsonEncoder(objectMapper);
+			List<MimeType> encodable = new ArrayList<>(defaultEncoder.getEncodableMimeTypes());
+			encodable.add(LoanIssuanceController.APPLICATION_NDJSON);
+			Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper, encodable.toArray(new MimeType[0]));
+			List<MediaType> streaming = new ArrayList<>(defaultEncoder.getStreamingMediaTypes());
+			streaming.add(LoanIssuanceController.APPLICATION_NDJSON);
+			encoder.setStreamingMediaTypes(streaming);
+			configurer.defaultCodecs().jackson2JsonEncoder(encoder);
+			List<MimeType> decodable = new ArrayList<>(new Jackson2JsonDecoder(objectMapper).getDecodableMimeTypes());
+			decodable.add(LoanIssuanceController.APPLICATION_NDJSON);
+			configurer.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper, decodable.toArray(new MimeType[0])));
+		};
+	}
 }
 
 // explain proxy bean methods
@@ -115,42 +176,697 @@ class CircuitConfiguration {
 @RestController
 class LoanIssuanceController {
 
+	static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
 	private static final Logger log = LoggerFactory.getLogger(LoanIssuanceController.class);
 
-	private final WebClient webClient;
+	private final FraudChecker fraudChecker;
 
-	private final UriQueriedEmitter emitter;
+	private final RefreshingCache<FraudIndex> fraudIndexCache;
 
-	private final ReactiveCircuitBreakerFactory factory;
+	private final UriQueriedEmitter emitter;
 
-	LoanIssuanceController(@LoadBalanced WebClient.Builder builder, UriQueriedEmitter emitter, ReactiveCircuitBreakerFactory factory) {
-		this.webClient = builder.build();
+	LoanIssuanceController(FraudChecker fraudChecker, RefreshingCache<FraudIndex> fraudIndexCache, UriQueriedEmitter emitter) {
+		this.fraudChecker = fraudChecker;
+		this.fraudIndexCache = fraudIndexCache;
 		this.emitter = emitter;
-		this.factory = factory;
 	}
 
 	@PostMapping("/loan")
 	@Counted(value = "loan.counted",description = "loan application retrieval")
 	Mono<ResponseEntity> loan(@RequestBody LoanApplication loanApplication) {
-		log.info("\n\nGot loan/ request\n\n");
-		log.info("\n\n[baggage] Request from user [{}]\n\n", ExtraFieldPropagation.get("user"));
+		log.info("Got loan/ request, [baggage] from user [{}]", ExtraFieldPropagation.get("user"));
 		this.emitter.uriQueriedForPath("/loan");
-		return factory.create("fraud").run(this.webClient.get()
-				.uri("http://fraud-detection/frauds")
-				.retrieve()
-				.bodyToMono(List.class)).map(frauds -> {
-			System.out.println(frauds.contains(loanApplication.getName()));
-			if (frauds != null && !frauds.contains(loanApplication.getName())) {
+		return this.fraudChecker.isFraud(loanApplication.getName()).map(fraud -> {
+			if (!fraud) {
 				return ResponseEntity.status(HttpStatus.OK).body("LOAN_GRANTED");
 			}
 			return ResponseEntity.status(HttpStatus.FORBIDDEN).body("LOAN_REJECTED");
 		});
 	}
+
+	/**
+	 * Decides on many loan applications, sent either as a JSON array or as newline
+	 * delimited JSON, against a single fetch of the fraud list. Decisions are streamed
+	 * back as they're made, so memory stays bounded whatever the size of the batch.
+	 */
+	@PostMapping(value = "/loans",
+			consumes = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE, "application/x-ndjson" },
+			produces = { MediaType.APPLICATION_STREAM_JSON_VALUE, "application/x-ndjson" })
+	Flux<LoanDecision> loans(@RequestBody Flux<LoanApplication> loanApplications) {
+		log.info("Got loans/ request");
+		this.emitter.uriQueriedForPath("/loans");
+		return this.fraudIndexCache.get().flatMapMany(frauds -> loanApplications
+				.map(loanApplication -> new LoanDecision(loanApplication.getName(),
+						frauds.contains(loanApplication.getName()) ? "LOAN_REJECTED" : "LOAN_GRANTED")));
+	}
+}
+
+@Configuration(proxyBeanMethods = false)
+class FraudConfiguration {
+
+	@Bean
+	FraudClient fraudClient(@LoadBalanced WebClient.Builder builder, ReactiveCircuitBreakerFactory factory, FraudCacheProperties properties) {
+		return new FraudClient(builder.build(), factory, properties);
+	}
+
+	@Bean
+	RefreshingCache<FraudIndex> fraudIndexCache(FraudClient fraudClient, FraudCacheProperties properties, MeterRegistry meterRegistry) {
+		return new RefreshingCache<>("fraud-list", fraudClient::frauds, properties, meterRegistry);
+	}
+
+	@Bean
+	RefreshingCache<BloomFilter> fraudFilterCache(FraudClient fraudClient, FraudCacheProperties properties, MeterRegistry meterRegistry) {
+		return new RefreshingCache<>("fraud-filter", previous -> fraudClient.filter(), properties, meterRegistry);
+	}
+
+	@Bean
+	FraudChecker fraudChecker(FraudCheckProperties checkProperties, FraudClient fraudClient,
+			RefreshingCache<FraudIndex> fraudIndexCache, RefreshingCache<BloomFilter> fraudFilterCache,
+			MeterRegistry meterRegistry) {
+		if (checkProperties.getMode() == FraudCheckProperties.Mode.FILTER) {
+			return new FilterFraudChecker(fraudFilterCache, fraudClient, meterRegistry);
+		}
+		return new IndexFraudChecker(fraudIndexCache);
+	}
+}
+
+@ConfigurationProperties("fraud.check")
+class FraudCheckProperties {
+
+	/**
+	 * How loan applications are checked against the fraud list. {@code list} keeps the
+	 * whole list locally, {@code filter} keeps only a bloom filter and asks
+	 * fraud-detection about names the filter might contain.
+	 */
+	private Mode mode = Mode.LIST;
+
+	public Mode getMode() {
+		return this.mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	enum Mode {
+
+		LIST, FILTER
+
+	}
+}
+
+@ConfigurationProperties("fraud.cache")
+class FraudCacheProperties {
+
+	/**
+	 * Whether the fraud list should be cached locally. When disabled, every loan
+	 * application results in a call to fraud-detection.
+	 */
+	private boolean enabled = true;
+
+	/**
+	 * How long a fetched fraud list is considered fresh.
+	 */
+	private Duration ttl = Duration.ofSeconds(10);
+
+	/**
+	 * How long after the ttl has passed a stale fraud list may still be served while
+	 * it is being refreshed in the background.
+	 */
+	private Duration maxStale = Duration.ofMinutes(1);
+
+	/**
+	 * Whether names should be trimmed and lower cased before being indexed and
+	 * looked up.
+	 */
+	private boolean normalizeNames = false;
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public Duration getTtl() {
+		return this.ttl;
+	}
+
+	public void setTtl(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	public Duration getMaxStale() {
+		return this.maxStale;
+	}
+
+	public void setMaxStale(Duration maxStale) {
+		this.maxStale = maxStale;
+	}
+
+	public boolean isNormalizeNames() {
+		return this.normalizeNames;
+	}
+
+	public void setNormalizeNames(boolean normalizeNames) {
+		this.normalizeNames = normalizeNames;
+	}
+}
+
+/**
+ * Keeps the last fetched value in memory. A fresh value is served as is, a stale one
+ * is served while a single background refresh is in progress (stale-while-revalidate).
+ * Only when there is no value or it is older than {@code ttl + maxStale} does the
+ * caller wait for fraud-detection. The loader gets the previous value (or
+ * {@code null}) so that it can fetch only what has changed.
+ */
+class RefreshingCache<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(RefreshingCache.class);
+
+	private final String name;
+
+	private final Function<T, Mono<T>> loader;
+
+	private final FraudCacheProperties properties;
+
+	private final SingleFlight<String, T> singleFlight;
+
+	private final AtomicReference<Cached<T>> cached = new AtomicReference<>();
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	RefreshingCache(String name, Function<T, Mono<T>> loader, FraudCacheProperties properties, MeterRegistry meterRegistry) {
+		this.name = name;
+		this.loader = loader;
+		this.properties = properties;
+		this.singleFlight = new SingleFlight<>(name, meterRegistry);
+	}
+
+	Mono<T> get() {
+		if (!this.properties.isEnabled()) {
+			return load();
+		}
+		Cached<T> current = this.cached.get();
+		if (current == null) {
+			return load();
+		}
+		long age = System.nanoTime() - current.loadedAt;
+		long ttl = this.properties.getTtl().toNanos();
+		if (age < ttl) {
+			return Mono.just(current.value);
+		}
+		if (age < ttl + this.properties.getMaxStale().toNanos()) {
+			refreshInBackground();
+			return Mono.just(current.value);
+		}
+		return load();
+	}
+
+	/**
+	 * @return the last loaded value or {@code null} if nothing was loaded yet
+	 */
+	T current() {
+		Cached<T> current = this.cached.get();
+		return current != null ? current.value : null;
+	}
+
+	// concurrent callers that find no usable value share a single upstream call
+	private Mono<T> load() {
+		return this.singleFlight.execute(this.name, () -> this.loader.apply(current())
+				.doOnNext(value -> this.cached.set(new Cached<>(value, System.nanoTime()))));
+	}
+
+	private void refreshInBackground() {
+		if (!this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		load().doFinally(signal -> this.refreshing.set(false))
+				.subscribe(value -> log.debug("Refreshed the {}", this.name),
+						throwable -> log.warn("Failed to refresh the {}, will keep on serving the cached one", this.name, throwable));
+	}
+
+	private static class Cached<T> {
+
+		private final T value;
+
+		private final long loadedAt;
+
+		Cached(T value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
+
+/**
+ * Collapses concurrent calls for the same key into one upstream call whose result is
+ * shared by all of them. The call is forgotten as soon as it completes, so callers
+ * that come later trigger a fresh one and never get stale data.
+ */
+class SingleFlight<K, V> {
+
+	private final Map<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final Counter upstream;
+
+	private final Counter collapsed;
+
+	SingleFlight(String name, MeterRegistry meterRegistry) {
+		this.upstream = meterRegistry.counter("fraud.requests.upstream", "call", name);
+		this.collapsed = meterRegistry.counter("fraud.requests.collapsed", "call", name);
+	}
+
+	Mono<V> execute(K key, Supplier<Mono<V>> call) {
+		return Mono.defer(() -> {
+			AtomicReference<Mono<V>> self = new AtomicReference<>();
+			// forgotten before the result reaches anyone, who could otherwise call again
+			// and get the completed call back
+			Mono<V> candidate = Mono.defer(call)
+					.doOnTerminate(() -> this.inFlight.remove(key, self.get()))
+					.cache();
+			self.set(candidate);
+			Mono<V> existing = this.inFlight.putIfAbsent(key, candidate);
+			if (existing != null) {
+				this.collapsed.increment();
+				return existing;
+			}
+			this.upstream.increment();
+			return candidate;
+		});
+	}
+}
+
+class FraudClient {
+
+	private final WebClient webClient;
+
+	private final ReactiveCircuitBreakerFactory factory;
+
+	private final FraudCacheProperties properties;
+
+	FraudClient(WebClient webClient, ReactiveCircuitBreakerFactory factory, FraudCacheProperties properties) {
+		this.webClient = webClient;
+		this.factory = factory;
+		this.properties = properties;
+	}
+
+	/**
+	 * Fetches the whole list when there's no previous version, otherwise only the
+	 * changes since that version.
+	 */
+	Mono<FraudIndex> frauds(FraudIndex previous) {
+		if (previous == null || previous.version() == null) {
+			return this.factory.create("fraud").run(this.webClient.get()
+					.uri("http://fraud-detection/frauds")
+					.retrieve()
+					.toEntity(new ParameterizedTypeReference<List<String>>() { }))
+					.map(entity -> FraudIndex.of(entity.getBody() != null ? entity.getBody() : Collections.emptyList(),
+							this.properties.isNormalizeNames(), version(entity.getHeaders().getETag())));
+		}
+		return this.factory.create("fraud").run(this.webClient.get()
+				.uri("http://fraud-detection/frauds/changes?since={version}", previous.version())
+				.retrieve()
+				.bodyToMono(FraudChanges.class))
+				.map(previous::apply)
+				// 304 - nothing has changed since our version
+				.defaultIfEmpty(previous);
+	}
+
+	private String version(String eTag) {
+		if (eTag == null) {
+			return null;
+		}
+		String version = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+		return version.replace("\"", "");
+	}
+
+	Mono<BloomFilter> filter() {
+		return this.factory.create("fraud").run(this.webClient.get()
+				.uri("http://fraud-detection/filters/frauds")
+				.retrieve()
+				.bodyToMono(FraudFilter.class))
+				.map(BloomFilter::from);
+	}
+
+	Mono<Boolean> isFraud(String name) {
+		return this.factory.create("fraud").run(this.webClient.get()
+				.uri("http://fraud-detection/frauds/{name}", name)
+				.retrieve()
+				.bodyToMono(FraudCheck.class))
+				.map(FraudCheck::isFraud);
+	}
+}
+
+interface FraudChecker {
+
+	Mono<Boolean> isFraud(String name);
+}
+
+class IndexFraudChecker implements FraudChecker {
+
+	private final RefreshingCache<FraudIndex> cache;
+
+	IndexFraudChecker(RefreshingCache<FraudIndex> cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public Mono<Boolean> isFraud(String name) {
+		return this.cache.get().map(frauds -> frauds.contains(name));
+	}
+}
+
+/**
+ * Checks names against a locally kept bloom filter and only asks fraud-detection when
+ * the filter says that the name might be a fraud.
+ */
+class FilterFraudChecker implements FraudChecker {
+
+	private final RefreshingCache<BloomFilter> cache;
+
+	private final FraudClient fraudClient;
+
+	private final SingleFlight<String, Boolean> singleFlight;
+
+	private final Counter negatives;
+
+	private final Counter positives;
+
+	private final Counter falsePositives;
+
+	FilterFraudChecker(RefreshingCache<BloomFilter> cache, FraudClient fraudClient, MeterRegistry meterRegistry) {
+		this.cache = cache;
+		this.fraudClient = fraudClient;
+		this.singleFlight = new SingleFlight<>("fraud-check", meterRegistry);
+		this.negatives = meterRegistry.counter("fraud.filter.checks", "result", "negative");
+		this.positives = meterRegistry.counter("fraud.filter.checks", "result", "maybe");
+		this.falsePositives = meterRegistry.counter("fraud.filter.false.positives");
+		Gauge.builder("fraud.filter.size", cache, c -> c.current() != null ? c.current().sizeInBytes() : Double.NaN)
+				.description("Size of the local fraud bloom filter")
+				.baseUnit("bytes")
+				.register(meterRegistry);
+		Gauge.builder("fraud.filter.false.positive.rate", cache, c -> c.current() != null ? c.current().falsePositiveRate() : Double.NaN)
+				.description("Expected false positive rate of the local fraud bloom filter")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public Mono<Boolean> isFraud(String name) {
+		return this.cache.get().flatMap(filter -> {
+			if (!filter.mightContain(name)) {
+				this.negatives.increment();
+				return Mono.just(false);
+			}
+			this.positives.increment();
+			return this.singleFlight.execute(name, () -> this.fraudClient.isFraud(name)).doOnNext(fraud -> {
+				if (!fraud) {
+					this.falsePositives.increment();
+				}
+			});
+		});
+	}
+}
+
+/**
+ * Hash based index over the fraud list. It's built once per fetched list so that
+ * checking a name is a single hash lookup, no matter how long the list is.
+ */
+class FraudIndex {
+
+	private final Set<String> names;
+
+	private final boolean normalize;
+
+	private final String version;
+
+	private FraudIndex(Set<String> names, boolean normalize, String version) {
+		this.names = names;
+		this.normalize = normalize;
+		this.version = version;
+	}
+
+	static FraudIndex of(Collection<String> frauds, boolean normalize) {
+		return of(frauds, normalize, null);
+	}
+
+	static FraudIndex of(Collection<String> frauds, boolean normalize, String version) {
+		Set<String> names = new HashSet<>(Math.max(16, (int) (frauds.size() / .75f) + 1));
+		for (String fraud : frauds) {
+			if (fraud != null) {
+				names.add(normalize ? normalize(fraud) : fraud);
+			}
+		}
+		return new FraudIndex(names, normalize, version);
+	}
+
+	/**
+	 * @return the version of the list as reported by fraud-detection or {@code null}
+	 * if it didn't report one
+	 */
+	String version() {
+		return this.version;
+	}
+
+	FraudIndex apply(FraudChanges changes) {
+		if (changes.isFull()) {
+			return of(changes.getAdded(), this.normalize, changes.getVersion());
+		}
+		Set<String> names = new HashSet<>(this.names);
+		for (String removed : changes.getRemoved()) {
+			if (removed != null) {
+				names.remove(this.normalize ? normalize(removed) : removed);
+			}
+		}
+		for (String added : changes.getAdded()) {
+			if (added != null) {
+				names.add(this.normalize ? normalize(added) : added);
+			}
+		}
+		return new FraudIndex(names, this.normalize, changes.getVersion());
+	}
+
+	boolean contains(String name) {
+		if (name == null) {
+			return false;
+		}
+		return this.names.contains(this.normalize ? normalize(name) : name);
+	}
+
+	int size() {
+		return this.names.size();
+	}
+
+	private static String normalize(String name) {
+		return name.trim().toLowerCase(Locale.ROOT);
+	}
+}
+
+/**
+ * Bloom filter over the fraud list as published by fraud-detection under
+ * {@code /filters/frauds}. Names must be hashed exactly as fraud-detection does.
+ */
+class BloomFilter {
+
+	private final String version;
+
+	private final double falsePositiveRate;
+
+	private final long[] bits;
+
+	private final long numBits;
+
+	private final int numHashFunctions;
+
+	private BloomFilter(String version, double falsePositiveRate, long[] bits, long numBits, int numHashFunctions) {
+		this.version = version;
+		this.falsePositiveRate = falsePositiveRate;
+		this.bits = bits;
+		this.numBits = numBits;
+		this.numHashFunctions = numHashFunctions;
+	}
+
+	static BloomFilter from(FraudFilter filter) {
+		ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(filter.getBits()));
+		long[] bits = new long[buffer.remaining() / Long.BYTES];
+		buffer.asLongBuffer().get(bits);
+		return new BloomFilter(filter.getVersion(), filter.getFalsePositiveRate(), bits, filter.getNumBits(), filter.getNumHashFunctions());
+	}
+
+	boolean mightContain(String name) {
+		if (name == null) {
+			return false;
+		}
+		long hash1 = hash(name);
+		long hash2 = secondHash(hash1);
+		for (int i = 0; i < this.numHashFunctions; i++) {
+			long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % this.numBits;
+			if ((this.bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String version() {
+		return this.version;
+	}
+
+	double falsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	long sizeInBytes() {
+		return this.bits.length * (long) Long.BYTES;
+	}
+
+	private static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static long secondHash(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash | 1;
+	}
+}
+
+class FraudFilter {
+
+	private String version;
+
+	private double falsePositiveRate;
+
+	private long numBits;
+
+	private int numHashFunctions;
+
+	private String bits;
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public double getFalsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	public long getNumBits() {
+		return this.numBits;
+	}
+
+	public void setNumBits(long numBits) {
+		this.numBits = numBits;
+	}
+
+	public int getNumHashFunctions() {
+		return this.numHashFunctions;
+	}
+
+	public void setNumHashFunctions(int numHashFunctions) {
+		this.numHashFunctions = numHashFunctions;
+	}
+
+	public String getBits() {
+		return this.bits;
+	}
+
+	public void setBits(String bits) {
+		this.bits = bits;
+	}
+}
+
+class FraudChanges {
+
+	private String version;
+
+	private boolean full;
+
+	private List<String> added = Collections.emptyList();
+
+	private List<String> removed = Collections.emptyList();
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	public boolean isFull() {
+		return this.full;
+	}
+
+	public void setFull(boolean full) {
+		this.full = full;
+	}
+
+	public List<String> getAdded() {
+		return this.added;
+	}
+
+	public void setAdded(List<String> added) {
+		this.added = added;
+	}
+
+	public List<String> getRemoved() {
+		return this.removed;
+	}
+
+	public void setRemoved(List<String> removed) {
+		this.removed = removed;
+	}
+}
+
+class FraudCheck {
+
+	private String name;
+
+	private boolean fraud;
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public boolean isFraud() {
+		return this.fraud;
+	}
+
+	public void setFraud(boolean fraud) {
+		this.fraud = fraud;
+	}
 }
 
 class LoanApplication {
 	private String name;
 
+	LoanApplication() {
+
+	}
+
 	LoanApplication(String name) {
 		this.name = name;
 	}
@@ -164,6 +880,26 @@ class LoanApplication {
 	}
 }
 
+class LoanDecision {
+
+	private final String name;
+
+	private final String decision;
+
+	LoanDecision(String name, String decision) {
+		this.name = name;
+		this.decision = decision;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getDecision() {
+		return this.decision;
+	}
+}
+
 @Configuration
 @LoadBalancerClient(value = "fraud-detection", configuration = CustomLoadBalancerConfiguration.class)
 class MyConfiguration {
@@ -232,18 +968,24 @@ class StaticServiceInstanceListSupplier implements ServiceInstanceListSupplier {
 @Configuration
 class Config {
 	@Bean
-	EmitterProcessor<UriQueried> proxyEventEmitterProcessor() {
-		return EmitterProcessor.create();
+	BoundedEventSink<UriQueried> uriQueriedSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		return new BoundedEventSink<>(properties, meterRegistry);
 	}
 
 	@Bean
-	Supplier<Flux<UriQueried>> events(EmitterProcessor<UriQueried> emitterProcessor) {
-		return () -> emitterProcessor;
+	Supplier<Flux<Message<?>>> events(BoundedEventSink<UriQueried> sink, UriQueriedMessages messages) {
+		return () -> messages.toMessages(sink.asFlux());
 	}
 
 	@Bean
-	UriQueriedEmitter uriQueriedEmitter(Environment environment, EmitterProcessor<UriQueried> processor) {
-		return new UriQueriedEmitter(environment, processor);
+	UriQueriedMessages uriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties,
+			EventFormatProperties formatProperties) {
+		return new UriQueriedMessages(objectMapper, properties, formatProperties);
+	}
+
+	@Bean
+	UriQueriedEmitter uriQueriedEmitter(Environment environment, BoundedEventSink<UriQueried> sink) {
+		return new UriQueriedEmitter(environment, sink);
 	}
 }
 
@@ -253,11 +995,11 @@ class UriQueriedEmitter {
 
 	private final Environment environment;
 
-	private final EmitterProcessor<UriQueried> processor;
+	private final BoundedEventSink<UriQueried> sink;
 
-	UriQueriedEmitter(Environment environment, EmitterProcessor<UriQueried> processor) {
+	UriQueriedEmitter(Environment environment, BoundedEventSink<UriQueried> sink) {
 		this.environment = environment;
-		this.processor = processor;
+		this.sink = sink;
 	}
 
 	@NewSpan("query-uri")
@@ -265,9 +1007,10 @@ class UriQueriedEmitter {
 	@Timed(value = "message_sending", percentiles = {0.5, 0.99}, histogram = true)
 	void uriQueriedForPath(String path) {
 		String uri = "http://localhost:" + environment.getProperty("server.port") + path;
-		UriQueried uriQueried = new UriQueried(environment.getProperty("spring.application.name"), uri);
+		UriQueried uriQueried = new UriQueried(environment.getProperty("spring.application.name"), uri,
+				ExtraFieldPropagation.get("user"));
 		log.info("Sending out [{}]", uriQueried);
-		this.processor.onNext(uriQueried);
+		this.sink.emit(uriQueried);
 	}
 }
 
@@ -279,9 +1022,20 @@ class UriQueried {
 
 	private final String uri;
 
+	/**
+	 * The {@code user} baggage of the request. A batch carries the events of many
+	 * requests, so the message's own baggage can't stand in for it.
+	 */
+	private final String user;
+
 	public UriQueried(String applicationName, String uri) {
+		this(applicationName, uri, null);
+	}
+
+	public UriQueried(String applicationName, String uri, String user) {
 		this.applicationName = applicationName;
 		this.uri = uri;
+		this.user = user;
 	}
 
 	public String getApplicationName() {
@@ -296,6 +1050,10 @@ class UriQueried {
 		return this.uri;
 	}
 
+	public String getUser() {
+		return this.user;
+	}
+
 	@Override
 	public String toString() {
 		return "UriQueried{" +
@@ -304,4 +1062,419 @@ class UriQueried {
 				", uri='" + uri + '\'' +
 				'}';
 	}
-}
\ No newline at end of file
+}
+
+@ConfigurationProperties("events.buffer")
+class EventBufferProperties {
+
+	/**
+	 * Maximum number of events waiting to be sent out to the broker.
+	 */
+	private int size = 1024;
+
+	/**
+	 * What to do with a new event when the buffer is full.
+	 */
+	private Overflow overflow = Overflow.DROP_OLDEST;
+
+	/**
+	 * How long to wait for space in the buffer when the overflow strategy is
+	 * {@code block}. The event gets dropped once the timeout passes. Callers on a
+	 * non-blocking thread, like the Netty event loop, never wait: a full buffer drops
+	 * their event right away, as {@code drop-newest} does.
+	 */
+	private Duration blockTimeout = Duration.ofMillis(10);
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	public Overflow getOverflow() {
+		return this.overflow;
+	}
+
+	public void setOverflow(Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	public Duration getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	public void setBlockTimeout(Duration blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	enum Overflow {
+
+		DROP_OLDEST, DROP_NEWEST, BLOCK
+
+	}
+}
+
+/**
+ * Bounded buffer between the code emitting events and the binder sending them out.
+ * Events are handed to the binder only as fast as it requests them; when it can't
+ * keep up the buffer fills up and the configured overflow strategy kicks in, so a slow
+ * broker never makes the emitting request wait longer than {@code blockTimeout}, and
+ * never makes an event loop wait at all.
+ */
+class BoundedEventSink<T> {
+
+	private final BlockingQueue<T> queue;
+
+	private final EventBufferProperties properties;
+
+	private final Counter dropped;
+
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private final Flux<T> flux;
+
+	private volatile FluxSink<T> sink;
+
+	BoundedEventSink(EventBufferProperties properties, MeterRegistry meterRegistry) {
+		this.queue = new ArrayBlockingQueue<>(properties.getSize());
+		this.properties = properties;
+		this.dropped = meterRegistry.counter("events.dropped", "overflow", properties.getOverflow().name().toLowerCase(Locale.ROOT));
+		Gauge.builder("events.queue.depth", this.queue, Collection::size)
+				.description("Number of events waiting to be sent out")
+				.register(meterRegistry);
+		this.flux = Flux.create(sink -> {
+			this.sink = sink;
+			sink.onRequest(n -> drain());
+			sink.onDispose(() -> this.sink = null);
+		});
+	}
+
+	Flux<T> asFlux() {
+		return this.flux;
+	}
+
+	/**
+	 * @return {@code false} if the event got dropped
+	 */
+	boolean emit(T event) {
+		boolean accepted = offer(event);
+		drain();
+		return accepted;
+	}
+
+	private boolean offer(T event) {
+		switch (this.properties.getOverflow()) {
+		case BLOCK:
+			// parking a non-blocking thread, e.g. the Netty event loop, would hold up every
+			// request it serves, so those fall through to DROP_NEWEST
+			if (!Schedulers.isInNonBlockingThread()) {
+				try {
+					if (this.queue.offer(event, this.properties.getBlockTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+						return true;
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				this.dropped.increment();
+				return false;
+			}
+		case DROP_NEWEST:
+			if (this.queue.offer(event)) {
+				return true;
+			}
+			this.dropped.increment();
+			return false;
+		default:
+			while (!this.queue.offer(event)) {
+				if (this.queue.poll() != null) {
+					this.dropped.increment();
+				}
+			}
+			return true;
+		}
+	}
+
+	// hands queued events over to the binder, at most as many as it has requested
+	private void drain() {
+		if (this.wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			FluxSink<T> sink = this.sink;
+			if (sink != null) {
+				while (sink.requestedFromDownstream() > 0) {
+					T event = this.queue.poll();
+					if (event == null) {
+						break;
+					}
+					sink.next(event);
+				}
+			}
+			missed = this.wip.addAndGet(-missed);
+		}
+		while (missed != 0);
+	}
+}
+
+@ConfigurationProperties("events.batch")
+class EventBatchProperties {
+
+	/**
+	 * Whether events should be grouped into batches, each sent out as a single
+	 * message.
+	 */
+	private boolean enabled = false;
+
+	/**
+	 * Maximum number of events in a batch.
+	 */
+	private int maxSize = 500;
+
+	/**
+	 * Maximum time to wait for a batch to fill up before it's sent out anyway.
+	 */
+	private Duration maxWait = Duration.ofMillis(100);
+
+	/**
+	 * How batches are compressed.
+	 */
+	private Compression compression = Compression.GZIP;
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Duration getMaxWait() {
+		return this.maxWait;
+	}
+
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public Compression getCompression() {
+		return this.compression;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	enum Compression {
+
+		NONE, GZIP
+
+	}
+}
+
+@ConfigurationProperties("events")
+class EventFormatProperties {
+
+	/**
+	 * Wire format of outgoing events. Consumers pick the matching decoder from the
+	 * message content type, so producers can be switched over one at a time.
+	 */
+	private Format format = Format.JSON;
+
+	public Format getFormat() {
+		return this.format;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	enum Format {
+
+		JSON, BINARY
+
+	}
+}
+
+/**
+ * Turns emitted events into outgoing messages. By default every event is a message of
+ * its own; with batching enabled events are grouped by size and time into a single,
+ * optionally compressed, payload. Payloads are either JSON or the compact
+ * {@link UriQueriedBinaryCodec binary format}.
+ */
+class UriQueriedMessages {
+
+	static final String BATCH_CONTENT_TYPE = "application/vnd.uriqueried.batch+json";
+
+	static final String CONTENT_ENCODING = "x-content-encoding";
+
+	static final String BATCH_SIZE = "x-batch-size";
+
+	static final String PARTITION_KEY = "partitionKey";
+
+	private final ObjectMapper objectMapper;
+
+	private final EventBatchProperties properties;
+
+	private final EventFormatProperties.Format format;
+
+	private final UriQueriedBinaryCodec binaryCodec = new UriQueriedBinaryCodec();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	UriQueriedMessages(ObjectMapper objectMapper, EventBatchProperties properties, EventFormatProperties formatProperties) {
+		this.objectMapper = objectMapper;
+		this.properties = properties;
+		this.format = formatProperties.getFormat();
+	}
+
+	Flux<Message<?>> toMessages(Flux<UriQueried> events) {
+		if (!this.properties.isEnabled()) {
+			if (this.format == EventFormatProperties.Format.BINARY) {
+				return events.map(event -> binary(Collections.singletonList(event)));
+			}
+			return events.<Message<?>>map(event -> MessageBuilder.withPayload(event)
+					.setHeader(PARTITION_KEY, partitionKey(Collections.singletonList(event)))
+					.build());
+		}
+		return events.bufferTimeout(this.properties.getMaxSize(), this.properties.getMaxWait())
+				.map(this::batch);
+	}
+
+	private Message<?> binary(List<UriQueried> events) {
+		return MessageBuilder.withPayload(this.binaryCodec.encode(events))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.setHeader(PARTITION_KEY, partitionKey(events))
+				.build();
+	}
+
+	private Message<?> batch(List<UriQueried> events) {
+		boolean binary = this.format == EventFormatProperties.Format.BINARY;
+		MessageBuilder<byte[]> builder = MessageBuilder.withPayload(encode(events, binary))
+				.setHeader(MessageHeaders.CONTENT_TYPE, binary ? UriQueriedBinaryCodec.CONTENT_TYPE : BATCH_CONTENT_TYPE)
+				.setHeader(BATCH_SIZE, events.size())
+				.setHeader(PARTITION_KEY, partitionKey(events));
+		if (this.properties.getCompression() == EventBatchProperties.Compression.GZIP) {
+			builder.setHeader(CONTENT_ENCODING, "gzip");
+		}
+		return builder.build();
+	}
+
+	// Single events are keyed by application and URI. A batch mixes the URIs of this
+	// application; keyed by the application alone all of its batches would land on a
+	// single partition, and so with a single consumer, hence the running batch number.
+	private String partitionKey(List<UriQueried> events) {
+		UriQueried first = events.get(0);
+		return first.getApplicationName() + ":" + (events.size() == 1 ? first.getUri() : this.batches.incrementAndGet());
+	}
+
+	private byte[] encode(List<UriQueried> events, boolean binary) {
+		try {
+			byte[] payload = binary ? this.binaryCodec.encode(events) : this.objectMapper.writeValueAsBytes(events);
+			if (this.properties.getCompression() != EventBatchProperties.Compression.GZIP) {
+				return payload;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+				gzip.write(payload);
+			}
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
+
+/**
+ * Compact binary encoding of {@link UriQueried} events. A payload holds one or more
+ * events:
+ * <pre>
+ * version         byte (2)
+ * event count     varint
+ * dictionary size varint, followed by that many strings
+ * per event       application name (dictionary index, varint)
+ *                 timestamp (zig-zag varint delta from the previous event)
+ *                 URI origin, i.e. scheme and authority (dictionary index, varint)
+ *                 rest of the URI (string)
+ *                 user (dictionary index + 1, varint; 0 when there's none)
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Application names and URI
+ * origins repeat on nearly every event, so each is written once per payload.
+ */
+class UriQueriedBinaryCodec {
+
+	static final String CONTENT_TYPE = "application/vnd.uriqueried+binary";
+
+	static final int VERSION = 2;
+
+	byte[] encode(List<UriQueried> events) {
+		Map<String, Integer> dictionary = new LinkedHashMap<>();
+		for (UriQueried event : events) {
+			dictionary.putIfAbsent(nullToEmpty(event.getApplicationName()), dictionary.size());
+			dictionary.putIfAbsent(origin(nullToEmpty(event.getUri())), dictionary.size());
+			if (event.getUser() != null) {
+				dictionary.putIfAbsent(event.getUser(), dictionary.size());
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + events.size() * 16);
+		out.write(VERSION);
+		writeVarint(out, events.size());
+		writeVarint(out, dictionary.size());
+		dictionary.keySet().forEach(entry -> writeString(out, entry));
+		long previous = 0;
+		for (UriQueried event : events) {
+			String uri = nullToEmpty(event.getUri());
+			String origin = origin(uri);
+			writeVarint(out, dictionary.get(nullToEmpty(event.getApplicationName())));
+			writeVarint(out, zigZag(event.getTimestamp() - previous));
+			writeVarint(out, dictionary.get(origin));
+			writeString(out, uri.substring(origin.length()));
+			writeVarint(out, event.getUser() != null ? dictionary.get(event.getUser()) + 1 : 0);
+			previous = event.getTimestamp();
+		}
+		return out.toByteArray();
+	}
+
+	static String origin(String uri) {
+		int scheme = uri.indexOf("://");
+		if (scheme < 0) {
+			return "";
+		}
+		int path = uri.indexOf('/', scheme + 3);
+		return path < 0 ? uri : uri.substring(0, path);
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
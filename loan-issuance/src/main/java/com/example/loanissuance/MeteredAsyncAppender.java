@@ -0,0 +1,38 @@
+package com.example.loanissuance;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * {@link AsyncAppender} that reports how many events are queued
+ * ({@code logging.async.queued}) and how many it dropped ({@code logging.async.dropped}),
+ * either because the queue was full or because it was filling up and the event was
+ * discardable. Meant to be used with {@code neverBlock} so that logging never waits
+ * on a slow appender.
+ */
+public class MeteredAsyncAppender extends AsyncAppender {
+
+	private Counter dropped;
+
+	@Override
+	public void start() {
+		this.dropped = Metrics.counter("logging.async.dropped", "appender", getName());
+		Gauge.builder("logging.async.queued", this, MeteredAsyncAppender::getNumberOfElementsInQueue)
+				.tag("appender", getName())
+				.register(Metrics.globalRegistry);
+		super.start();
+	}
+
+	@Override
+	protected void append(ILoggingEvent event) {
+		int remaining = getRemainingCapacity();
+		if (remaining == 0 || (remaining < getDiscardingThreshold() && isDiscardable(event))) {
+			// racy, but close enough for a metric
+			this.dropped.increment();
+		}
+		super.append(event);
+	}
+}
@@ -0,0 +1,68 @@
+package com.example.loanissuance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Marker;
+
+/**
+ * Lets through only a sample of the INFO and lower events of the configured loggers,
+ * meant for the ones logging on every request. Warnings and errors always pass.
+ * Counts the events left out as {@code logging.sampled.out}.
+ */
+public class SamplingTurboFilter extends TurboFilter {
+
+	private final List<String> loggers = new ArrayList<>();
+
+	private double rate = 1.0;
+
+	private Counter sampledOut;
+
+	public void addLogger(String logger) {
+		this.loggers.add(logger);
+	}
+
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	@Override
+	public void start() {
+		if (this.rate < 0 || this.rate > 1) {
+			addError("Sampling rate must be between 0 and 1, got [" + this.rate + "]");
+			return;
+		}
+		this.sampledOut = Metrics.counter("logging.sampled.out");
+		super.start();
+	}
+
+	@Override
+	public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+		// no format means an isXxxEnabled() check, sampling those too would square the rate
+		if (!isStarted() || format == null || level == null || level.toInt() > Level.INFO_INT
+				|| !sampled(logger.getName())) {
+			return FilterReply.NEUTRAL;
+		}
+		if (ThreadLocalRandom.current().nextDouble() < this.rate) {
+			return FilterReply.NEUTRAL;
+		}
+		this.sampledOut.increment();
+		return FilterReply.DENY;
+	}
+
+	private boolean sampled(String name) {
+		for (String logger : this.loggers) {
+			if (name.startsWith(logger)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
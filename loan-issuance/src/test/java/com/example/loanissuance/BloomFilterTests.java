@@ -0,0 +1,48 @@
+package com.example.loanissuance;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class BloomFilterTests {
+
+	// the filter fraud-detection publishes for these, pinned in its FraudRegistryTests too
+	static final List<String> PINNED_FRAUDS = Arrays.asList("olga", "oleg", "żółw", "Ali Baba", "fraud-1", "fraud-2",
+			"fraud-3", "fraud-4", "fraud-5", "fraud-6");
+
+	@Test
+	void should_hash_names_the_way_fraud_detection_does() {
+		BloomFilter filter = BloomFilter.from(pinnedFilter());
+
+		then(PINNED_FRAUDS).allMatch(filter::mightContain);
+		then(Arrays.asList("marcin", "josh", "olgA", "zolw", "fraud-7", "ala", "mallory"))
+				.noneMatch(filter::mightContain);
+		then(filter.mightContain(null)).isFalse();
+	}
+
+	@Test
+	void should_read_the_published_filter() {
+		BloomFilter filter = BloomFilter.from(pinnedFilter());
+
+		then(filter.version()).isEqualTo("891b4377dc98c6dd");
+		then(filter.falsePositiveRate()).isEqualTo(0.009965154527860823);
+		then(filter.sizeInBytes()).isEqualTo(16);
+	}
+
+	private static FraudFilter pinnedFilter() {
+		FraudFilter filter = new FraudFilter();
+		filter.setVersion("891b4377dc98c6dd");
+		filter.setFalsePositiveRate(0.009965154527860823);
+		filter.setNumBits(96);
+		filter.setNumHashFunctions(7);
+		filter.setBits("q5ugVzlXOsYAAAAATPTnXA==");
+		return filter;
+	}
+}
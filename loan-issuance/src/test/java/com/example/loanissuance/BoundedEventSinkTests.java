@@ -0,0 +1,65 @@
+package com.example.loanissuance;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class BoundedEventSinkTests {
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	// its threads are non-blocking ones, like the Netty event loop's
+	Scheduler eventLoop = Schedulers.newParallel("event-loop", 1);
+
+	@AfterEach
+	void close() {
+		this.eventLoop.dispose();
+	}
+
+	@Test
+	void should_wait_for_space_when_blocking() {
+		BoundedEventSink<String> sink = fullSink(Duration.ofMillis(50));
+
+		long start = System.nanoTime();
+		boolean accepted = sink.emit("2");
+
+		then(accepted).isFalse();
+		then(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+		then(this.meterRegistry.get("events.dropped").counter().count()).isEqualTo(1);
+	}
+
+	@Test
+	void should_never_block_a_non_blocking_thread() {
+		BoundedEventSink<String> sink = fullSink(Duration.ofMinutes(1));
+
+		Boolean accepted = Mono.fromCallable(() -> sink.emit("2"))
+				.subscribeOn(this.eventLoop)
+				.block(Duration.ofSeconds(5));
+
+		then(accepted).isFalse();
+		then(this.meterRegistry.get("events.dropped").counter().count()).isEqualTo(1);
+		then(sink.asFlux().blockFirst(Duration.ofSeconds(5))).isEqualTo("1");
+	}
+
+	private BoundedEventSink<String> fullSink(Duration blockTimeout) {
+		EventBufferProperties properties = new EventBufferProperties();
+		properties.setSize(1);
+		properties.setOverflow(EventBufferProperties.Overflow.BLOCK);
+		properties.setBlockTimeout(blockTimeout);
+		BoundedEventSink<String> sink = new BoundedEventSink<>(properties, this.meterRegistry);
+		then(sink.emit("1")).isTrue();
+		return sink;
+	}
+}
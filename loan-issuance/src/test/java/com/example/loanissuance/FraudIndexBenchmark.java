@@ -0,0 +1,86 @@
+package com.example.loanissuance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares checking a name against the raw fraud list with checking it against the
+ * {@link FraudIndex}. The index lookup should stay flat as the list grows.
+ *
+ * Run with {@code ./mvnw test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.loanissuance.FraudIndexBenchmark} or from the IDE.
+ *
+ * @author Marcin Grzejszczak
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FraudIndexBenchmark {
+
+	@Param({ "1000", "100000", "500000" })
+	int size;
+
+	List<String> list;
+
+	FraudIndex index;
+
+	String absentName = "marcin";
+
+	String presentName;
+
+	@Setup
+	public void setup() {
+		this.list = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			this.list.add("fraud-" + i);
+		}
+		this.presentName = "fraud-" + (this.size / 2);
+		this.index = FraudIndex.of(this.list, false);
+	}
+
+	@Benchmark
+	public boolean listContainsAbsent() {
+		return this.list.contains(this.absentName);
+	}
+
+	@Benchmark
+	public boolean indexContainsAbsent() {
+		return this.index.contains(this.absentName);
+	}
+
+	@Benchmark
+	public boolean listContainsPresent() {
+		return this.list.contains(this.presentName);
+	}
+
+	@Benchmark
+	public boolean indexContainsPresent() {
+		return this.index.contains(this.presentName);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(FraudIndexBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,51 @@
+package com.example.loanissuance;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class FraudIndexTests {
+
+	@Test
+	void should_find_names_that_are_on_the_list() {
+		FraudIndex index = FraudIndex.of(Arrays.asList("olga", "oleg"), false);
+
+		then(index.contains("olga")).isTrue();
+		then(index.contains("oleg")).isTrue();
+		then(index.contains("marcin")).isFalse();
+		then(index.contains(null)).isFalse();
+		then(index.size()).isEqualTo(2);
+	}
+
+	@Test
+	void should_match_names_case_insensitively_when_normalizing() {
+		FraudIndex index = FraudIndex.of(Arrays.asList(" Olga", "OLEG"), true);
+
+		then(index.contains("olga")).isTrue();
+		then(index.contains("Oleg ")).isTrue();
+		then(FraudIndex.of(Arrays.asList(" Olga", "OLEG"), false).contains("olga")).isFalse();
+	}
+
+	@Test
+	void should_skip_null_names_in_changes_when_normalizing() {
+		FraudIndex index = FraudIndex.of(Arrays.asList("olga", "oleg"), true, "1");
+		FraudChanges changes = new FraudChanges();
+		changes.setVersion("2");
+		changes.setAdded(Arrays.asList("Marcin", null));
+		changes.setRemoved(Arrays.asList(null, " OLEG"));
+
+		FraudIndex applied = index.apply(changes);
+
+		then(applied.contains("olga")).isTrue();
+		then(applied.contains("oleg")).isFalse();
+		then(applied.contains("marcin")).isTrue();
+		then(applied.size()).isEqualTo(2);
+		then(applied.version()).isEqualTo("2");
+	}
+}
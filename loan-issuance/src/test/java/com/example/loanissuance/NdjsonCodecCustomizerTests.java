@@ -0,0 +1,59 @@
+package com.example.loanissuance;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.EncoderHttpMessageWriter;
+import org.springframework.http.codec.HttpMessageReader;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class NdjsonCodecCustomizerTests {
+
+	static final ResolvableType MAP = ResolvableType.forClass(Map.class);
+
+	ServerCodecConfigurer configurer = ServerCodecConfigurer.create();
+
+	@Test
+	void should_read_and_write_ndjson_next_to_the_default_json_types() {
+		new LoanIssuanceApplication().ndjsonCodecCustomizer(new ObjectMapper()).customize(this.configurer);
+
+		for (String mediaType : new String[] { "application/json", "application/problem+json", "application/stream+json",
+				"application/x-ndjson" }) {
+			then(this.configurer.getWriters().stream().anyMatch(writer -> writer.canWrite(MAP, MediaType.parseMediaType(mediaType))))
+					.as("writes %s", mediaType).isTrue();
+			then(this.configurer.getReaders().stream().anyMatch(reader -> canRead(reader, mediaType)))
+					.as("reads %s", mediaType).isTrue();
+		}
+	}
+
+	@Test
+	void should_stream_ndjson_and_stream_json() {
+		new LoanIssuanceApplication().ndjsonCodecCustomizer(new ObjectMapper()).customize(this.configurer);
+
+		Jackson2JsonEncoder encoder = this.configurer.getWriters().stream()
+				.filter(EncoderHttpMessageWriter.class::isInstance)
+				.map(writer -> ((EncoderHttpMessageWriter<?>) writer).getEncoder())
+				.filter(Jackson2JsonEncoder.class::isInstance)
+				.map(Jackson2JsonEncoder.class::cast)
+				.findFirst()
+				.get();
+
+		then(encoder.getStreamingMediaTypes()).contains(MediaType.APPLICATION_STREAM_JSON,
+				LoanIssuanceController.APPLICATION_NDJSON);
+	}
+
+	private static boolean canRead(HttpMessageReader<?> reader, String mediaType) {
+		return reader.canRead(MAP, MediaType.parseMediaType(mediaType));
+	}
+}
@@ -0,0 +1,49 @@
+package com.example.loanissuance;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class SingleFlightTests {
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	SingleFlight<String, Integer> singleFlight = new SingleFlight<>("test", this.meterRegistry);
+
+	AtomicInteger calls = new AtomicInteger();
+
+	@Test
+	void should_share_a_single_call_between_concurrent_callers() {
+		StepVerifier.create(Flux.range(0, 100)
+				.flatMap(i -> this.singleFlight.execute("frauds", this::slowCall)))
+				.expectNextCount(100)
+				.verifyComplete();
+
+		then(this.calls.get()).isEqualTo(1);
+		then(this.meterRegistry.counter("fraud.requests.upstream", "call", "test").count()).isEqualTo(1);
+		then(this.meterRegistry.counter("fraud.requests.collapsed", "call", "test").count()).isEqualTo(99);
+	}
+
+	@Test
+	void should_call_again_once_the_previous_call_has_completed() {
+		this.singleFlight.execute("frauds", this::slowCall).block();
+		this.singleFlight.execute("frauds", this::slowCall).block();
+
+		then(this.calls.get()).isEqualTo(2);
+	}
+
+	private Mono<Integer> slowCall() {
+		return Mono.delay(Duration.ofMillis(100)).map(tick -> this.calls.incrementAndGet());
+	}
+}
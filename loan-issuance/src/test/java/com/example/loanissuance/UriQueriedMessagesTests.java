@@ -0,0 +1,48 @@
+package com.example.loanissuance;
+
+import java.time.Duration;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import org.springframework.messaging.Message;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedMessagesTests {
+
+	@Test
+	void should_key_single_events_by_application_and_uri() {
+		UriQueriedMessages messages = new UriQueriedMessages(new ObjectMapper(), new EventBatchProperties(),
+				new EventFormatProperties());
+
+		List<Message<?>> sent = messages.toMessages(Flux.just(new UriQueried("loan-issuance", "/loan"),
+				new UriQueried("loan-issuance", "/loan"))).collectList().block();
+
+		then(sent).extracting(message -> message.getHeaders().get(UriQueriedMessages.PARTITION_KEY))
+				.containsExactly("loan-issuance:/loan", "loan-issuance:/loan");
+	}
+
+	@Test
+	void should_spread_the_batches_of_an_application_over_partitions() {
+		EventBatchProperties properties = new EventBatchProperties();
+		properties.setEnabled(true);
+		properties.setMaxSize(2);
+		properties.setMaxWait(Duration.ofSeconds(10));
+		UriQueriedMessages messages = new UriQueriedMessages(new ObjectMapper(), properties, new EventFormatProperties());
+
+		List<Message<?>> sent = messages.toMessages(Flux.range(0, 6).map(i -> new UriQueried("loan-issuance", "/loan")))
+				.collectList().block();
+
+		then(sent).hasSize(3)
+				.extracting(message -> message.getHeaders().get(UriQueriedMessages.PARTITION_KEY))
+				.doesNotHaveDuplicates()
+				.allSatisfy(key -> then((String) key).startsWith("loan-issuance:"));
+	}
+}
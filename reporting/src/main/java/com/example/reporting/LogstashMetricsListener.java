@@ -0,0 +1,67 @@
+package com.example.reporting;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import net.logstash.logback.appender.listener.TcpAppenderListener;
+
+/**
+ * Reports what happens to events shipped to Logstash: sent ({@code logstash.events.sent}),
+ * dropped because the ring buffer was full or failed to be sent
+ * ({@code logstash.events.dropped}) and failed connection attempts
+ * ({@code logstash.connection.failures}).
+ */
+public class LogstashMetricsListener implements TcpAppenderListener<ILoggingEvent> {
+
+	private final Counter sent = Metrics.counter("logstash.events.sent");
+
+	private final Counter appendFailed = Metrics.counter("logstash.events.dropped", "reason", "buffer-full");
+
+	private final Counter sendFailed = Metrics.counter("logstash.events.dropped", "reason", "send-failure");
+
+	private final Counter connectionFailures = Metrics.counter("logstash.connection.failures");
+
+	@Override
+	public void appenderStarted(Appender<ILoggingEvent> appender) {
+	}
+
+	@Override
+	public void appenderStopped(Appender<ILoggingEvent> appender) {
+	}
+
+	@Override
+	public void eventAppended(Appender<ILoggingEvent> appender, ILoggingEvent event, long durationInNanos) {
+	}
+
+	@Override
+	public void eventAppendFailed(Appender<ILoggingEvent> appender, ILoggingEvent event, Throwable reason) {
+		this.appendFailed.increment();
+	}
+
+	@Override
+	public void eventSent(Appender<ILoggingEvent> appender, Socket socket, ILoggingEvent event, long durationInNanos) {
+		this.sent.increment();
+	}
+
+	@Override
+	public void eventSendFailure(Appender<ILoggingEvent> appender, ILoggingEvent event, Throwable reason) {
+		this.sendFailed.increment();
+	}
+
+	@Override
+	public void connectionOpened(Appender<ILoggingEvent> appender, Socket socket) {
+	}
+
+	@Override
+	public void connectionClosed(Appender<ILoggingEvent> appender, Socket socket) {
+	}
+
+	@Override
+	public void connectionFailed(Appender<ILoggingEvent> appender, InetSocketAddress address, Throwable reason) {
+		this.connectionFailures.increment();
+	}
+}
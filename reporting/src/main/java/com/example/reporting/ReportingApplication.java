@@ -1,30 +1,112 @@
 package com.example.reporting;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import brave.propagation.ExtraFieldPropagation;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.DirectProcessor;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.cloud.stream.endpoint.BindingsEndpoint;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.unit.DataSize;
+import org.springframework.util.MimeType;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
 
 @SpringBootApplication
+@EnableConfigurationProperties({ EventWriteProperties.class, EventStreamProperties.class, EventStorageProperties.class,
+		EventSketchProperties.class, ClusterProperties.class })
 // @EnableScheduling
 public class ReportingApplication {
 
@@ -34,12 +116,108 @@ public class ReportingApplication {
 		SpringApplication.run(ReportingApplication.class, args);
 	}
 
+	/**
+	 * Offsets are committed manually: a message is acknowledged only once all of its
+	 * events, and all events of earlier messages, have been written to Mongo. When a
+	 * write fails for good everything not acknowledged is consumed again (see
+	 * {@link EventIntake}).
+	 */
 	@Bean
-	Consumer<Mono<UriQueried>> events(UriQueriedReactiveRepository repository) {
-		return uri -> uri
-				.doOnNext(uriQueried -> log.info("Got a message [{}]", uriQueried))
-				.doOnNext(uriQueried -> log.info("Baggage from user [{}]", ExtraFieldPropagation.get("user")))
-				.flatMap(repository::save).subscribe();
+	Function<Flux<Message<byte[]>>, Mono<Void>> events(UriQueriedDecoder decoder, UriQueriedWriter writer,
+			UriQueriedRollups rollups, UriQueriedStream stream, UriQueriedSketches sketches,
+			EventWriteProperties properties, EventIntake intake, MeterRegistry meterRegistry) {
+		return messages -> {
+			MessageAcknowledgments acknowledgments = new MessageAcknowledgments(meterRegistry, intake::acknowledged);
+			return Flux.defer(() -> writer.write(messages
+					// requested or not, the binder pushes messages in; they're counted as they
+					// come so that the intake can pause the binding
+					.doOnNext(message -> intake.received())
+					.onBackpressureBuffer()
+					.limitRate(properties.getPrefetch())
+					.concatMap(message -> decoder.decode(message)
+							.onErrorResume(e -> {
+								log.warn("Skipping a message that can't be decoded", e);
+								return Flux.empty();
+							})
+							.collectList()
+							.doOnNext(events -> sketches.record(events, UriQueriedDecoder.user(message)))
+							.doOnNext(events -> acknowledgments.received(message, events.size()))
+							.flatMapIterable(events -> events), properties.getPrefetch())
+					.doOnNext(uriQueried -> log.info("Got a message [{}], baggage from user [{}]", uriQueried,
+							ExtraFieldPropagation.get("user"))))
+					.concatMap(batch -> rollups.record(batch).thenReturn(batch))
+					.doOnNext(stream::publish)
+					.doOnNext(batch -> acknowledgments.written(batch.size())))
+					.retryWhen(errors -> errors.concatMap(error -> intake.redeliver(error, acknowledgments::clear)))
+					.then();
+		};
+	}
+
+	@Bean
+	EventIntake eventIntake(ObjectProvider<BindingsEndpoint> bindingsEndpoint, EventWriteProperties properties) {
+		return new EventIntake(EventIntake.BINDING, properties.getMaxBacklog(), (binding, state) -> {
+			BindingsEndpoint endpoint = bindingsEndpoint.getIfAvailable();
+			if (endpoint == null) {
+				log.warn("No bindings endpoint, can't change the state of [{}] to [{}]", binding, state);
+				return;
+			}
+			endpoint.changeState(binding, state);
+		});
+	}
+
+	@Bean
+	UriQueriedWriter uriQueriedWriter(UriQueriedReactiveRepository repository, ReactiveMongoOperations mongoOperations,
+			EventWriteProperties properties, MeterRegistry meterRegistry) {
+		return new UriQueriedWriter(repository, mongoOperations, properties, meterRegistry);
+	}
+
+	@Bean
+	UriQueriedRollups uriQueriedRollups(ReactiveMongoOperations mongoOperations, EventWriteProperties properties) {
+		return new UriQueriedRollups(mongoOperations, properties);
+	}
+
+	@Bean
+	UriQueriedStream uriQueriedStream(EventStreamProperties properties, MeterRegistry meterRegistry) {
+		return new UriQueriedStream(properties, meterRegistry);
+	}
+
+	@Bean
+	UriQueriedSketches uriQueriedSketches(EventSketchProperties properties) {
+		return new UriQueriedSketches(properties);
+	}
+
+	@Bean
+	ReportingPeers reportingPeers(WebClient.Builder builder, ClusterProperties properties,
+			EventSketchProperties sketchProperties) {
+		return new ReportingPeers(builder.build(), properties, sketchProperties);
+	}
+
+	@Bean
+	UriQueriedIndexes uriQueriedIndexes(ReactiveMongoOperations mongoOperations, EventStorageProperties properties) {
+		return new UriQueriedIndexes(mongoOperations, properties);
+	}
+
+	@Bean
+	UriQueriedDecoder uriQueriedDecoder(ObjectMapper objectMapper) {
+		return new UriQueriedDecoder(objectMapper);
+	}
+
+	// Lets /query write application/x-ndjson next to application/stream+json and the
+	// default JSON types, application/*+json among them; runs after Boot's own Jackson
+	// codec customizer
+	@Bean
+	@Order(1)
+	CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+		return configurer -> {
+			Jackson2JsonEncoder defaultEncoder = new Jackson2JsonEncoder(objectMapper);
+			List<MimeType> encodable = new ArrayList<>(defaultEncoder.getEncodableMimeTypes());
+			encodable.add(UriQueriedController.APPLICATION_NDJSON);
+			Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper, encodable.toArray(new MimeType[0]));
+			List<MediaType> streaming = new ArrayList<>(defaultEncoder.getStreamingMediaTypes());
+			streaming.add(UriQueriedController.APPLICATION_NDJSON);
+			encoder.setStreamingMediaTypes(streaming);
+			configurer.defaultCodecs().jackson2JsonEncoder(encoder);
+		};
 	}
 
 	@Bean
@@ -48,32 +226,1714 @@ public class ReportingApplication {
 	}
 }
 
+@ConfigurationProperties("events.write")
+class EventWriteProperties {
+
+	/**
+	 * Maximum number of events written to Mongo in a single bulk insert.
+	 */
+	private int maxSize = 500;
+
+	/**
+	 * Maximum time to wait for a batch to fill up before it's written anyway.
+	 */
+	private Duration maxWait = Duration.ofMillis(200);
+
+	/**
+	 * Maximum number of bulk inserts in flight at the same time.
+	 */
+	private int maxInFlight = 4;
+
+	/**
+	 * Whether a batch is inserted in order, stopping at the first failing document.
+	 * Unordered inserts let Mongo apply the batch in parallel and skip over failures.
+	 */
+	private boolean ordered = true;
+
+	/**
+	 * Number of messages requested from the binder ahead of being written.
+	 */
+	private int prefetch = 256;
+
+	/**
+	 * Delay before the first retry of a failed write.
+	 */
+	private Duration retryBackoff = Duration.ofMillis(100);
+
+	/**
+	 * Upper bound for the exponentially growing delay between retries of a failed
+	 * write.
+	 */
+	private Duration maxRetryBackoff = Duration.ofSeconds(10);
+
+	/**
+	 * Number of retries of a failed write, after which the events not yet written are
+	 * consumed again from the last committed offsets.
+	 */
+	private int maxRetries = 10;
+
+	/**
+	 * Maximum number of messages received but not yet acknowledged; the consumer
+	 * binding is paused until half of them are.
+	 */
+	private int maxBacklog = 1024;
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Duration getMaxWait() {
+		return this.maxWait;
+	}
+
+	public void setMaxWait(Duration maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public boolean isOrdered() {
+		return this.ordered;
+	}
+
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	public int getPrefetch() {
+		return this.prefetch;
+	}
+
+	public void setPrefetch(int prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public Duration getRetryBackoff() {
+		return this.retryBackoff;
+	}
+
+	public void setRetryBackoff(Duration retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public Duration getMaxRetryBackoff() {
+		return this.maxRetryBackoff;
+	}
+
+	public void setMaxRetryBackoff(Duration maxRetryBackoff) {
+		this.maxRetryBackoff = maxRetryBackoff;
+	}
+
+	public int getMaxRetries() {
+		return this.maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxBacklog() {
+		return this.maxBacklog;
+	}
+
+	public void setMaxBacklog(int maxBacklog) {
+		this.maxBacklog = maxBacklog;
+	}
+}
+
+/**
+ * Flow control between the consumer binding and the writer. The binder pushes messages
+ * in regardless of demand, so the binding is paused while {@code maxBacklog} messages
+ * wait to be acknowledged, e.g. while Mongo is slow or down, and resumed once half of
+ * them are. A paused Kafka consumer keeps polling, without fetching records, so it
+ * keeps its partitions. Once a write fails for good the binding is stopped and started
+ * again, so that everything not acknowledged gets consumed again from the last
+ * committed offsets.
+ */
+class EventIntake {
+
+	private static final Logger log = LoggerFactory.getLogger(EventIntake.class);
+
+	static final String BINDING = "events-in-0";
+
+	private final String binding;
+
+	private final int maxBacklog;
+
+	private final BiConsumer<String, BindingsEndpoint.State> bindings;
+
+	private final AtomicInteger backlog = new AtomicInteger();
+
+	// changes, together with the state of the binding, guarded by this
+	private volatile boolean paused;
+
+	EventIntake(String binding, int maxBacklog, BiConsumer<String, BindingsEndpoint.State> bindings) {
+		this.binding = binding;
+		this.maxBacklog = maxBacklog;
+		this.bindings = bindings;
+	}
+
+	void received() {
+		if (this.backlog.incrementAndGet() >= this.maxBacklog && !this.paused) {
+			synchronized (this) {
+				if (!this.paused && this.backlog.get() >= this.maxBacklog) {
+					log.warn("[{}] messages wait to be written, pausing [{}]", this.backlog.get(), this.binding);
+					this.paused = true;
+					this.bindings.accept(this.binding, BindingsEndpoint.State.PAUSED);
+				}
+			}
+		}
+	}
+
+	void acknowledged() {
+		if (this.backlog.decrementAndGet() <= this.maxBacklog / 2 && this.paused) {
+			synchronized (this) {
+				if (this.paused && this.backlog.get() <= this.maxBacklog / 2) {
+					log.info("Resuming [{}]", this.binding);
+					this.paused = false;
+					this.bindings.accept(this.binding, BindingsEndpoint.State.RESUMED);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restarts the binding, so that the consumer starts over from the last committed
+	 * offsets; {@code forget} drops whatever the stopped consumer had handed over.
+	 * @return the error, once the binding has been restarted
+	 */
+	Mono<Throwable> redeliver(Throwable error, Runnable forget) {
+		return Mono.fromCallable(() -> {
+			log.error("Failed to write events, consuming everything not acknowledged again", error);
+			synchronized (this) {
+				this.bindings.accept(this.binding, BindingsEndpoint.State.STOPPED);
+				forget.run();
+				this.backlog.set(0);
+				this.paused = false;
+				this.bindings.accept(this.binding, BindingsEndpoint.State.STARTED);
+			}
+			return error;
+		}).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	int backlog() {
+		return this.backlog.get();
+	}
+
+	boolean paused() {
+		return this.paused;
+	}
+}
+
+/**
+ * Acknowledges consumed messages in the order they were received, once the events
+ * they carried have been written. Messages without an acknowledgment header (e.g.
+ * with auto-committed offsets) are only counted.
+ */
+class MessageAcknowledgments {
+
+	private final Deque<Pending> pending = new ArrayDeque<>();
+
+	private final Counter processed;
+
+	private final Runnable onAcknowledged;
+
+	MessageAcknowledgments(MeterRegistry meterRegistry, Runnable onAcknowledged) {
+		this.onAcknowledged = onAcknowledged;
+		this.processed = Counter.builder("events.processed")
+				.description("Events written to Mongo and acknowledged")
+				.register(meterRegistry);
+		Gauge.builder("events.pending.acknowledgments", this, MessageAcknowledgments::size)
+				.description("Messages received but not yet acknowledged")
+				.register(meterRegistry);
+	}
+
+	synchronized void received(Message<?> message, int events) {
+		this.pending.add(new Pending(message.getHeaders().get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class), events));
+		acknowledgeWritten();
+	}
+
+	synchronized void written(int events) {
+		this.processed.increment(events);
+		int remaining = events;
+		for (Pending head : this.pending) {
+			if (remaining == 0) {
+				break;
+			}
+			int taken = Math.min(remaining, head.remaining);
+			head.remaining -= taken;
+			remaining -= taken;
+		}
+		acknowledgeWritten();
+	}
+
+	synchronized int size() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Forgets the messages of a consumer that got stopped; they'll be consumed again.
+	 */
+	synchronized void clear() {
+		this.pending.clear();
+	}
+
+	private void acknowledgeWritten() {
+		while (!this.pending.isEmpty() && this.pending.peek().remaining == 0) {
+			Acknowledgment acknowledgment = this.pending.poll().acknowledgment;
+			if (acknowledgment != null) {
+				acknowledgment.acknowledge();
+			}
+			this.onAcknowledged.run();
+		}
+	}
+
+	private static final class Pending {
+
+		private final Acknowledgment acknowledgment;
+
+		private int remaining;
+
+		private Pending(Acknowledgment acknowledgment, int remaining) {
+			this.acknowledgment = acknowledgment;
+			this.remaining = remaining;
+		}
+	}
+}
+
+/**
+ * Writes incoming events to Mongo in bulk. Events are grouped by count and time into
+ * batches, each stored with a single insert, and at most a configured number of
+ * batches are in flight; beyond that the writer stops requesting events upstream.
+ * A batch that fails to be written is retried with backoff, which holds back every
+ * later batch, so no event is reported as written before it is. Once the retries are
+ * exhausted the returned {@link Flux} fails.
+ */
+class UriQueriedWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(UriQueriedWriter.class);
+
+	private final UriQueriedReactiveRepository repository;
+
+	private final ReactiveMongoOperations mongoOperations;
+
+	private final EventWriteProperties properties;
+
+	private final AtomicInteger backlog = new AtomicInteger();
+
+	private final DistributionSummary batchSize;
+
+	private final Timer flushed;
+
+	private final Timer failed;
+
+	UriQueriedWriter(UriQueriedReactiveRepository repository, ReactiveMongoOperations mongoOperations,
+			EventWriteProperties properties, MeterRegistry meterRegistry) {
+		this.repository = repository;
+		this.mongoOperations = mongoOperations;
+		this.properties = properties;
+		this.batchSize = DistributionSummary.builder("events.write.batch.size")
+				.description("Number of events written in a single bulk insert")
+				.register(meterRegistry);
+		this.flushed = flushTimer(meterRegistry, "success");
+		this.failed = flushTimer(meterRegistry, "failure");
+		Gauge.builder("events.write.backlog", this.backlog, AtomicInteger::get)
+				.description("Events received but not yet written")
+				.register(meterRegistry);
+	}
+
+	private static Timer flushTimer(MeterRegistry meterRegistry, String result) {
+		return Timer.builder("events.write.flush")
+				.description("Time taken to write a batch of events")
+				.tag("result", result)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Writes the given events, emitting every batch once it's been handled.
+	 */
+	Flux<List<UriQueried>> write(Flux<UriQueried> events) {
+		return events
+				.doOnNext(event -> this.backlog.incrementAndGet())
+				.bufferTimeout(this.properties.getMaxSize(), this.properties.getMaxWait())
+				.flatMapSequential(this::flush, this.properties.getMaxInFlight());
+	}
+
+	private Mono<List<UriQueried>> flush(List<UriQueried> batch) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			return insert(batch)
+					.doOnSuccess(ignored -> this.flushed.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+					.doOnError(e -> this.failed.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+		})
+				.doOnError(e -> log.error("Failed to write a batch of [{}] events", batch.size(), e))
+				.retryBackoff(this.properties.getMaxRetries(), this.properties.getRetryBackoff(), this.properties.getMaxRetryBackoff())
+				.doFinally(signal -> {
+					this.backlog.addAndGet(-batch.size());
+					this.batchSize.record(batch.size());
+				})
+				.thenReturn(batch);
+	}
+
+	private Mono<Void> insert(List<UriQueried> batch) {
+		if (this.properties.isOrdered()) {
+			return this.repository.saveAll(batch).then();
+		}
+		List<org.bson.Document> documents = new ArrayList<>(batch.size());
+		for (UriQueried event : batch) {
+			// as the repository would, so that streamed events have ids to resume from
+			if (event.getId() == null) {
+				event.setId(new ObjectId().toHexString());
+			}
+			org.bson.Document document = new org.bson.Document();
+			this.mongoOperations.getConverter().write(event, document);
+			documents.add(document);
+		}
+		return Mono.from(this.mongoOperations.getCollection(this.mongoOperations.getCollectionName(UriQueried.class))
+				.insertMany(documents, new InsertManyOptions().ordered(false)))
+				// a retry of a partly written batch only fails on the events already written
+				.onErrorResume(UriQueriedWriter::alreadyWritten, e -> Mono.empty())
+				.then();
+	}
+
+	private static boolean alreadyWritten(Throwable e) {
+		return e instanceof MongoBulkWriteException && ((MongoBulkWriteException) e).getWriteErrors().stream()
+				.allMatch(error -> ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY);
+	}
+}
+
+/**
+ * Keeps per application and URI counters of events in minute and hour buckets, plus
+ * a running total, so that counts are read from a handful of small documents rather
+ * than from the raw events. Counters are incremented with upserts after every written
+ * batch; like the events themselves they are updated at least once, so a redelivered
+ * batch is counted again.
+ */
+class UriQueriedRollups {
+
+	private static final Logger log = LoggerFactory.getLogger(UriQueriedRollups.class);
+
+	static final String TOTAL = "total";
+
+	private final ReactiveMongoOperations mongoOperations;
+
+	private final EventWriteProperties properties;
+
+	UriQueriedRollups(ReactiveMongoOperations mongoOperations, EventWriteProperties properties) {
+		this.mongoOperations = mongoOperations;
+		this.properties = properties;
+	}
+
+	Mono<Void> record(List<UriQueried> batch) {
+		if (batch.isEmpty()) {
+			return Mono.empty();
+		}
+		Map<String, UriQueriedRollup> increments = new HashMap<>();
+		for (UriQueried event : batch) {
+			for (UriQueriedRollup.Granularity granularity : UriQueriedRollup.Granularity.values()) {
+				UriQueriedRollup rollup = new UriQueriedRollup(granularity, granularity.bucket(event.getTimestamp()),
+						event.getApplicationName(), event.getUri());
+				increments.computeIfAbsent(rollup.getId(), id -> rollup).increment(1);
+			}
+		}
+		List<WriteModel<org.bson.Document>> updates = new ArrayList<>(increments.size() + 1);
+		increments.values().forEach(rollup -> updates.add(upsert(rollup.getId(),
+				new org.bson.Document("$inc", new org.bson.Document("count", rollup.getCount()))
+						.append("$setOnInsert", new org.bson.Document("granularity", rollup.getGranularity())
+								.append("bucket", rollup.getBucket())
+								.append("applicationName", rollup.getApplicationName())
+								.append("uri", rollup.getUri())))));
+		updates.add(upsert(TOTAL, new org.bson.Document("$inc", new org.bson.Document("count", (long) batch.size()))
+				.append("$setOnInsert", new org.bson.Document("granularity", TOTAL))));
+		return Mono.from(this.mongoOperations.getCollection(this.mongoOperations.getCollectionName(UriQueriedRollup.class))
+				.bulkWrite(updates, new BulkWriteOptions().ordered(false)))
+				.doOnError(e -> log.error("Failed to update rollups for a batch of [{}] events", batch.size(), e))
+				.retryBackoff(this.properties.getMaxRetries(), this.properties.getRetryBackoff(), this.properties.getMaxRetryBackoff())
+				.then();
+	}
+
+	private static UpdateOneModel<org.bson.Document> upsert(String id, org.bson.Document update) {
+		return new UpdateOneModel<>(Filters.eq("_id", id), update, new UpdateOptions().upsert(true));
+	}
+
+	Mono<Long> total() {
+		return this.mongoOperations.findById(TOTAL, UriQueriedRollup.class)
+				.map(UriQueriedRollup::getCount)
+				.defaultIfEmpty(0L);
+	}
+
+	Flux<UriQueriedRollup> find(UriQueriedRollup.Granularity granularity, long from, long to,
+			String applicationName, String uri) {
+		Criteria criteria = Criteria.where("granularity").is(granularity.key())
+				.and("bucket").gte(granularity.bucket(from)).lt(to);
+		if (applicationName != null) {
+			criteria.and("applicationName").is(applicationName);
+		}
+		if (uri != null) {
+			criteria.and("uri").is(uri);
+		}
+		return this.mongoOperations.find(Query.query(criteria).with(Sort.by("bucket")), UriQueriedRollup.class);
+	}
+}
+
+@Document
+class UriQueriedRollup {
+
+	@Id
+	private String id;
+
+	private String granularity;
+
+	private long bucket;
+
+	private String applicationName;
+
+	private String uri;
+
+	private long count;
+
+	public UriQueriedRollup() {
+	}
+
+	UriQueriedRollup(Granularity granularity, long bucket, String applicationName, String uri) {
+		this.id = granularity.key() + "|" + bucket + "|" + applicationName + "|" + uri;
+		this.granularity = granularity.key();
+		this.bucket = bucket;
+		this.applicationName = applicationName;
+		this.uri = uri;
+	}
+
+	void increment(long delta) {
+		this.count += delta;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getGranularity() {
+		return this.granularity;
+	}
+
+	public void setGranularity(String granularity) {
+		this.granularity = granularity;
+	}
+
+	public long getBucket() {
+		return this.bucket;
+	}
+
+	public void setBucket(long bucket) {
+		this.bucket = bucket;
+	}
+
+	public String getApplicationName() {
+		return this.applicationName;
+	}
+
+	public void setApplicationName(String applicationName) {
+		this.applicationName = applicationName;
+	}
+
+	public String getUri() {
+		return this.uri;
+	}
+
+	public void setUri(String uri) {
+		this.uri = uri;
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	enum Granularity {
+
+		MINUTE(TimeUnit.MINUTES.toMillis(1)), HOUR(TimeUnit.HOURS.toMillis(1));
+
+		private final long millis;
+
+		Granularity(long millis) {
+			this.millis = millis;
+		}
+
+		long bucket(long timestamp) {
+			return timestamp - Math.floorMod(timestamp, this.millis);
+		}
+
+		String key() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+}
+
+@ConfigurationProperties("events.storage")
+class EventStorageProperties {
+
+	/**
+	 * How long raw events are kept before Mongo expires them. Events are kept forever
+	 * when not set. Rollups are not affected.
+	 */
+	private Duration retention;
+
+	public Duration getRetention() {
+		return this.retention;
+	}
+
+	public void setRetention(Duration retention) {
+		this.retention = retention;
+	}
+}
+
+/**
+ * Makes sure the indexes the queries rely on exist once the application has started:
+ * timestamp and application name with timestamp, both followed by id to back the
+ * keyset pagination of {@code /query}, on raw events, granularity with
+ * bucket on rollups and, when a retention is set, a TTL index on the event date.
+ * Indexes are created in the background and failures only logged, so a missing
+ * Mongo doesn't stop the application from starting.
+ */
+class UriQueriedIndexes {
+
+	private static final Logger log = LoggerFactory.getLogger(UriQueriedIndexes.class);
+
+	private final ReactiveMongoOperations mongoOperations;
+
+	private final EventStorageProperties properties;
+
+	UriQueriedIndexes(ReactiveMongoOperations mongoOperations, EventStorageProperties properties) {
+		this.mongoOperations = mongoOperations;
+		this.properties = properties;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	void ensureIndexes() {
+		List<Mono<String>> indexes = new ArrayList<>();
+		ReactiveIndexOperations events = this.mongoOperations.indexOps(UriQueried.class);
+		indexes.add(events.ensureIndex(new Index().on("timestamp", Sort.Direction.ASC).on("_id", Sort.Direction.ASC)
+				.named("timestamp_id")));
+		indexes.add(events.ensureIndex(new Index().on("applicationName", Sort.Direction.ASC)
+				.on("timestamp", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("applicationName_timestamp_id")));
+		if (this.properties.getRetention() != null) {
+			indexes.add(events.ensureIndex(new Index().on("date", Sort.Direction.ASC)
+					.expire(this.properties.getRetention()).named("date_ttl")));
+		}
+		indexes.add(this.mongoOperations.indexOps(UriQueriedRollup.class)
+				.ensureIndex(new Index().on("granularity", Sort.Direction.ASC).on("bucket", Sort.Direction.ASC)
+						.named("granularity_bucket")));
+		Flux.concat(indexes)
+				.doOnNext(index -> log.info("Ensured index [{}]", index))
+				.subscribe(index -> { }, e -> log.error("Failed to ensure indexes. If the retention changed, "
+						+ "drop the [date_ttl] index so it can be recreated", e));
+	}
+}
+
+/**
+ * Pages through stored events with a keyset on timestamp and id: a page holds the
+ * events that come after the last event of the previous one, so every page costs
+ * an index seek no matter how deep into the collection it is.
+ */
+class UriQueriedPages {
+
+	static final Set<String> FIELDS = new LinkedHashSet<>(Arrays.asList("id", "applicationName", "timestamp", "uri"));
+
+	/**
+	 * {@code <timestamp>:<id>} of an event, the position pages and streams resume
+	 * from.
+	 */
+	static final String KEY = "-?\\d+:[0-9a-fA-F]{24}";
+
+	private final ReactiveMongoOperations mongoOperations;
+
+	UriQueriedPages(ReactiveMongoOperations mongoOperations) {
+		this.mongoOperations = mongoOperations;
+	}
+
+	/**
+	 * @param after {@code <timestamp>:<id>} of the last event of the previous page
+	 * @param fields fields to return; id and timestamp are always returned, as the
+	 * client needs them to ask for the next page
+	 */
+	Flux<Map<String, Object>> find(String applicationName, String uriPrefix, Long from, Long to, String after,
+			int limit, Collection<String> fields) {
+		List<Criteria> criteria = new ArrayList<>();
+		if (applicationName != null) {
+			criteria.add(Criteria.where("applicationName").is(applicationName));
+		}
+		if (uriPrefix != null) {
+			criteria.add(Criteria.where("uri").regex("^" + Pattern.quote(uriPrefix)));
+		}
+		if (from != null) {
+			criteria.add(Criteria.where("timestamp").gte(from));
+		}
+		if (to != null) {
+			criteria.add(Criteria.where("timestamp").lt(to));
+		}
+		if (after != null) {
+			int separator = after.indexOf(':');
+			long timestamp = Long.parseLong(after.substring(0, separator));
+			String id = after.substring(separator + 1);
+			criteria.add(new Criteria().orOperator(Criteria.where("timestamp").gt(timestamp),
+					Criteria.where("timestamp").is(timestamp).and("id").gt(id)));
+		}
+		Query query = new Query(criteria.isEmpty() ? new Criteria() : new Criteria().andOperator(criteria.toArray(new Criteria[0])))
+				.with(Sort.by(Sort.Order.asc("timestamp"), Sort.Order.asc("id")))
+				.limit(limit)
+				.cursorBatchSize(Math.min(limit, 1000));
+		Set<String> projection = new LinkedHashSet<>(Arrays.asList("id", "timestamp"));
+		projection.addAll(fields.isEmpty() ? FIELDS : fields);
+		projection.forEach(field -> query.fields().include(field));
+		return this.mongoOperations.find(query, UriQueried.class)
+				.map(event -> project(event, projection));
+	}
+
+	/**
+	 * Events with a timestamp in the given range, oldest first and unpaged, for
+	 * ranges known to be small.
+	 */
+	Flux<UriQueried> older(long from, long to, String applicationName, String uriPrefix) {
+		Criteria criteria = Criteria.where("timestamp").gte(from).lt(to);
+		if (applicationName != null) {
+			criteria.and("applicationName").is(applicationName);
+		}
+		if (uriPrefix != null) {
+			criteria.and("uri").regex("^" + Pattern.quote(uriPrefix));
+		}
+		return this.mongoOperations.find(new Query(criteria).with(Sort.by(Sort.Order.asc("timestamp"), Sort.Order.asc("id"))),
+				UriQueried.class);
+	}
+
+	private static Map<String, Object> project(UriQueried event, Set<String> fields) {
+		Map<String, Object> projected = new LinkedHashMap<>();
+		for (String field : fields) {
+			switch (field) {
+			case "id":
+				projected.put(field, event.getId());
+				break;
+			case "applicationName":
+				projected.put(field, event.getApplicationName());
+				break;
+			case "timestamp":
+				projected.put(field, event.getTimestamp());
+				break;
+			case "uri":
+				projected.put(field, event.getUri());
+				break;
+			}
+		}
+		return projected;
+	}
+}
+
+@ConfigurationProperties("events.sketch")
+class EventSketchProperties {
+
+	/**
+	 * Number of one minute windows of sketches kept, i.e. the longest window that can
+	 * be queried.
+	 */
+	private int windows = 60;
+
+	/**
+	 * HyperLogLog precision; 2^precision one byte registers per sketch, with a
+	 * standard error of about 1.04 / sqrt(2^precision).
+	 */
+	private int precision = 14;
+
+	/**
+	 * Number of URIs tracked per application for the top URIs. The larger it is
+	 * compared to the number asked for, the more accurate the counts.
+	 */
+	private int topCapacity = 256;
+
+	public int getWindows() {
+		return this.windows;
+	}
+
+	public void setWindows(int windows) {
+		this.windows = windows;
+	}
+
+	public int getPrecision() {
+		return this.precision;
+	}
+
+	public void setPrecision(int precision) {
+		this.precision = precision;
+	}
+
+	public int getTopCapacity() {
+		return this.topCapacity;
+	}
+
+	public void setTopCapacity(int topCapacity) {
+		this.topCapacity = topCapacity;
+	}
+}
+
+/**
+ * Approximate analytics over ingested events, kept per minute: distinct URIs and
+ * users as HyperLogLog sketches and the most queried URIs of every application as
+ * Space-Saving summaries. Both merge without loss of accuracy guarantees, so longer
+ * windows are merges of minutes and the state of several replicas can be merged
+ * too. Users are the {@code user} baggage of the request each event comes from; only
+ * events of producers that don't send it fall back to the baggage of the message.
+ */
+class UriQueriedSketches {
+
+	private final EventSketchProperties properties;
+
+	private final SketchWindow[] windows;
+
+	UriQueriedSketches(EventSketchProperties properties) {
+		this.properties = properties;
+		this.windows = new SketchWindow[properties.getWindows()];
+	}
+
+	/**
+	 * @param messageUser the {@code user} baggage of the message the events came in
+	 */
+	synchronized void record(List<UriQueried> events, String messageUser) {
+		for (UriQueried event : events) {
+			long minute = TimeUnit.MILLISECONDS.toMinutes(event.getTimestamp());
+			int slot = (int) Math.floorMod(minute, (long) this.windows.length);
+			SketchWindow window = this.windows[slot];
+			if (window == null || window.minute < minute) {
+				window = new SketchWindow(minute, this.properties.getPrecision(), this.properties.getTopCapacity());
+				this.windows[slot] = window;
+			}
+			else if (window.minute > minute) {
+				// older than the oldest window kept
+				continue;
+			}
+			window.add(event, event.getUser() != null ? event.getUser() : messageUser);
+		}
+	}
+
+	/**
+	 * All windows of the last given number of minutes merged into one.
+	 */
+	synchronized SketchWindow last(int minutes, long now) {
+		long to = TimeUnit.MILLISECONDS.toMinutes(now);
+		long from = to - Math.min(minutes, this.windows.length) + 1;
+		SketchWindow merged = new SketchWindow(from, this.properties.getPrecision(), this.properties.getTopCapacity());
+		for (SketchWindow window : this.windows) {
+			if (window != null && window.minute >= from && window.minute <= to) {
+				merged.merge(window);
+			}
+		}
+		return merged;
+	}
+}
+
+class SketchWindow {
+
+	final long minute;
+
+	final HyperLogLog uris;
+
+	final HyperLogLog users;
+
+	final Map<String, SpaceSaving> top = new HashMap<>();
+
+	private final int topCapacity;
+
+	SketchWindow(long minute, int precision, int topCapacity) {
+		this(minute, new HyperLogLog(precision), new HyperLogLog(precision), topCapacity);
+	}
+
+	SketchWindow(long minute, HyperLogLog uris, HyperLogLog users, int topCapacity) {
+		this.minute = minute;
+		this.uris = uris;
+		this.users = users;
+		this.topCapacity = topCapacity;
+	}
+
+	void add(UriQueried event, String user) {
+		this.uris.add(String.valueOf(event.getUri()));
+		if (user != null) {
+			this.users.add(user);
+		}
+		this.top.computeIfAbsent(String.valueOf(event.getApplicationName()), name -> new SpaceSaving(this.topCapacity))
+				.add(String.valueOf(event.getUri()), 1);
+	}
+
+	void merge(SketchWindow other) {
+		this.uris.merge(other.uris);
+		this.users.merge(other.users);
+		other.top.forEach((application, summary) -> this.top
+				.computeIfAbsent(application, name -> new SpaceSaving(this.topCapacity))
+				.merge(summary));
+	}
+
+	SketchSnapshot snapshot() {
+		SketchSnapshot snapshot = new SketchSnapshot();
+		snapshot.setMinute(this.minute);
+		snapshot.setPrecision(this.uris.precision());
+		snapshot.setUris(Base64.getEncoder().encodeToString(this.uris.registers()));
+		snapshot.setUsers(Base64.getEncoder().encodeToString(this.users.registers()));
+		Map<String, List<TopUri>> top = new HashMap<>();
+		this.top.forEach((application, summary) -> top.put(application, summary.top(this.topCapacity)));
+		snapshot.setTop(top);
+		return snapshot;
+	}
+
+	static SketchWindow from(SketchSnapshot snapshot, int topCapacity) {
+		Base64.Decoder decoder = Base64.getDecoder();
+		SketchWindow window = new SketchWindow(snapshot.getMinute(),
+				new HyperLogLog(snapshot.getPrecision(), decoder.decode(snapshot.getUris())),
+				new HyperLogLog(snapshot.getPrecision(), decoder.decode(snapshot.getUsers())), topCapacity);
+		snapshot.getTop().forEach((application, top) -> window.top.put(application, SpaceSaving.of(topCapacity, top)));
+		return window;
+	}
+}
+
+@ConfigurationProperties("reporting.cluster")
+class ClusterProperties {
+
+	/**
+	 * Base URLs of the other reporting instances. Each instance consumes only its
+	 * share of the events partitions, so cluster-wide analytics merge the sketches of
+	 * all of them, the event stream merges theirs and recent events are read from
+	 * Mongo rather than from the in-memory window.
+	 */
+	private List<URI> peers = new ArrayList<>();
+
+	/**
+	 * How long to wait for a peer before leaving its share out of a cluster-wide
+	 * result.
+	 */
+	private Duration timeout = Duration.ofSeconds(2);
+
+	public List<URI> getPeers() {
+		return this.peers;
+	}
+
+	public void setPeers(List<URI> peers) {
+		this.peers = peers;
+	}
+
+	public Duration getTimeout() {
+		return this.timeout;
+	}
+
+	public void setTimeout(Duration timeout) {
+		this.timeout = timeout;
+	}
+}
+
+/**
+ * Fans a sketch query out to all peers in parallel and merges their answers with the
+ * local window. A peer that fails or times out is left out and counted, so callers
+ * can tell a partial result from a complete one. Event streams of peers are merged
+ * as they come; one that fails fails the merged stream, which its client resumes.
+ */
+class ReportingPeers {
+
+	private static final Logger log = LoggerFactory.getLogger(ReportingPeers.class);
+
+	private final WebClient webClient;
+
+	private final ClusterProperties properties;
+
+	private final EventSketchProperties sketchProperties;
+
+	ReportingPeers(WebClient webClient, ClusterProperties properties, EventSketchProperties sketchProperties) {
+		this.webClient = webClient;
+		this.properties = properties;
+		this.sketchProperties = sketchProperties;
+	}
+
+	Mono<ClusterWindow> merge(SketchWindow local, int minutes) {
+		return Flux.fromIterable(this.properties.getPeers())
+				.flatMap(peer -> this.webClient.get()
+						.uri(UriComponentsBuilder.fromUri(peer).path("/analytics/sketches")
+								.queryParam("minutes", minutes).build().toUri())
+						.retrieve()
+						.bodyToMono(SketchSnapshot.class)
+						.timeout(this.properties.getTimeout())
+						.map(snapshot -> Optional.of(SketchWindow.from(snapshot, this.sketchProperties.getTopCapacity())))
+						.onErrorResume(e -> {
+							log.warn("Leaving peer [{}] out of a cluster-wide result", peer, e);
+							return Mono.just(Optional.empty());
+						}))
+				.reduce(new ClusterWindow(local), (cluster, window) -> {
+					if (window.isPresent()) {
+						cluster.window.merge(window.get());
+						cluster.instances++;
+					}
+					else {
+						cluster.failed++;
+					}
+					return cluster;
+				});
+	}
+
+	/**
+	 * Whether there are other instances, each consuming a share of the partitions.
+	 */
+	boolean partitioned() {
+		return !this.properties.getPeers().isEmpty();
+	}
+
+	/**
+	 * Events the peers store from now on.
+	 */
+	Flux<UriQueried> stream(String applicationName, String uriPrefix) {
+		return Flux.fromIterable(this.properties.getPeers())
+				.flatMap(peer -> this.webClient.get()
+						.uri(streamUri(peer, applicationName, uriPrefix))
+						.accept(MediaType.APPLICATION_STREAM_JSON)
+						.retrieve()
+						.bodyToFlux(UriQueried.class)
+						.doOnError(e -> log.warn("Lost the event stream of peer [{}]", peer, e)),
+						Integer.MAX_VALUE);
+	}
+
+	private static URI streamUri(URI peer, String applicationName, String uriPrefix) {
+		UriComponentsBuilder uri = UriComponentsBuilder.fromUri(peer).path("/queryStream").queryParam("local", true);
+		if (applicationName != null) {
+			uri.queryParam("applicationName", applicationName);
+		}
+		if (uriPrefix != null) {
+			uri.queryParam("uriPrefix", uriPrefix);
+		}
+		return uri.encode().build().toUri();
+	}
+
+	static class ClusterWindow {
+
+		final SketchWindow window;
+
+		int instances = 1;
+
+		int failed;
+
+		ClusterWindow(SketchWindow window) {
+			this.window = window;
+		}
+	}
+}
+
+/**
+ * The state of a {@link SketchWindow}, as exchanged between replicas.
+ */
+class SketchSnapshot {
+
+	private long minute;
+
+	private int precision;
+
+	private String uris;
+
+	private String users;
+
+	private Map<String, List<TopUri>> top = new HashMap<>();
+
+	public long getMinute() {
+		return this.minute;
+	}
+
+	public void setMinute(long minute) {
+		this.minute = minute;
+	}
+
+	public int getPrecision() {
+		return this.precision;
+	}
+
+	public void setPrecision(int precision) {
+		this.precision = precision;
+	}
+
+	public String getUris() {
+		return this.uris;
+	}
+
+	public void setUris(String uris) {
+		this.uris = uris;
+	}
+
+	public String getUsers() {
+		return this.users;
+	}
+
+	public void setUsers(String users) {
+		this.users = users;
+	}
+
+	public Map<String, List<TopUri>> getTop() {
+		return this.top;
+	}
+
+	public void setTop(Map<String, List<TopUri>> top) {
+		this.top = top;
+	}
+}
+
+/**
+ * HyperLogLog cardinality estimator with one byte registers. Values are hashed with
+ * FNV-1a followed by a 64 bit finalizer, as the raw FNV bits aren't spread well enough
+ * to take the register index from the top bits.
+ */
+class HyperLogLog {
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	HyperLogLog(int precision) {
+		this(precision, new byte[1 << precision]);
+	}
+
+	HyperLogLog(int precision, byte[] registers) {
+		if (precision < 4 || precision > 18 || registers.length != 1 << precision) {
+			throw new IllegalArgumentException("Invalid precision [" + precision + "] for [" + registers.length + "] registers");
+		}
+		this.precision = precision;
+		this.registers = registers;
+	}
+
+	void add(String value) {
+		long hash = hash(value);
+		int index = (int) (hash >>> (64 - this.precision));
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1);
+		if (rank > this.registers[index]) {
+			this.registers[index] = rank;
+		}
+	}
+
+	void merge(HyperLogLog other) {
+		if (other.precision != this.precision) {
+			throw new IllegalArgumentException("Can't merge sketches of precision [" + this.precision + "] and ["
+					+ other.precision + "]");
+		}
+		for (int i = 0; i < this.registers.length; i++) {
+			if (other.registers[i] > this.registers[i]) {
+				this.registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	long estimate() {
+		int m = this.registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : this.registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) {
+				zeros++;
+			}
+		}
+		double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// linear counting is more accurate for small cardinalities
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	int precision() {
+		return this.precision;
+	}
+
+	byte[] registers() {
+		return this.registers.clone();
+	}
+
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
+
+/**
+ * Space-Saving summary of the most frequent items. Keeps at most {@code capacity}
+ * counters; an item that isn't tracked takes over the smallest counter, inheriting
+ * its count as the error bound. An item's true count lies between
+ * {@code count - error} and {@code count}.
+ */
+class SpaceSaving {
+
+	private final int capacity;
+
+	private final Map<String, long[]> counters = new HashMap<>();
+
+	SpaceSaving(int capacity) {
+		this.capacity = capacity;
+	}
+
+	static SpaceSaving of(int capacity, List<TopUri> top) {
+		SpaceSaving summary = new SpaceSaving(capacity);
+		top.forEach(uri -> summary.counters.put(uri.getUri(), new long[] { uri.getCount(), uri.getError() }));
+		summary.trim();
+		return summary;
+	}
+
+	void add(String item, long count) {
+		long[] counter = this.counters.get(item);
+		if (counter != null) {
+			counter[0] += count;
+			return;
+		}
+		if (this.counters.size() < this.capacity) {
+			this.counters.put(item, new long[] { count, 0 });
+			return;
+		}
+		Map.Entry<String, long[]> smallest = smallest();
+		this.counters.remove(smallest.getKey());
+		this.counters.put(item, new long[] { smallest.getValue()[0] + count, smallest.getValue()[0] });
+	}
+
+	/**
+	 * Merges the other summary in. Items missing from a full summary may have been
+	 * seen up to its smallest count times, so that's added to their count and error.
+	 */
+	void merge(SpaceSaving other) {
+		long missingHere = minimum();
+		long missingThere = other.minimum();
+		Set<String> items = new HashSet<>(this.counters.keySet());
+		items.addAll(other.counters.keySet());
+		for (String item : items) {
+			long[] here = this.counters.getOrDefault(item, new long[] { missingHere, missingHere });
+			long[] there = other.counters.getOrDefault(item, new long[] { missingThere, missingThere });
+			this.counters.put(item, new long[] { here[0] + there[0], here[1] + there[1] });
+		}
+		trim();
+	}
+
+	List<TopUri> top(int k) {
+		return this.counters.entrySet().stream()
+				.sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+				.limit(k)
+				.map(entry -> new TopUri(entry.getKey(), entry.getValue()[0], entry.getValue()[1]))
+				.collect(Collectors.toList());
+	}
+
+	private long minimum() {
+		return this.counters.size() < this.capacity ? 0 : smallest().getValue()[0];
+	}
+
+	private Map.Entry<String, long[]> smallest() {
+		Map.Entry<String, long[]> smallest = null;
+		for (Map.Entry<String, long[]> entry : this.counters.entrySet()) {
+			if (smallest == null || entry.getValue()[0] < smallest.getValue()[0]) {
+				smallest = entry;
+			}
+		}
+		return smallest;
+	}
+
+	private void trim() {
+		if (this.counters.size() > this.capacity) {
+			this.counters.entrySet().stream()
+					.sorted(Comparator.comparingLong(entry -> entry.getValue()[0]))
+					.limit(this.counters.size() - this.capacity)
+					.map(Map.Entry::getKey)
+					.collect(Collectors.toList())
+					.forEach(this.counters::remove);
+		}
+	}
+}
+
+class TopUri {
+
+	private String uri;
+
+	private long count;
+
+	private long error;
+
+	public TopUri() {
+	}
+
+	TopUri(String uri, long count, long error) {
+		this.uri = uri;
+		this.count = count;
+		this.error = error;
+	}
+
+	public String getUri() {
+		return this.uri;
+	}
+
+	public void setUri(String uri) {
+		this.uri = uri;
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	public long getError() {
+		return this.error;
+	}
+
+	public void setError(long error) {
+		this.error = error;
+	}
+}
+
+@ConfigurationProperties("events.stream")
+class EventStreamProperties {
+
+	/**
+	 * Memory set aside for the window of most recent events kept in memory. It
+	 * bounds how far back recent queries and resumed streams are served without
+	 * going to Mongo.
+	 */
+	private DataSize memoryBudget = DataSize.ofMegabytes(64);
+
+	/**
+	 * Number of events buffered for a single slow subscriber. Once full, its oldest
+	 * events are dropped.
+	 */
+	private int subscriberBuffer = 1024;
+
+	public DataSize getMemoryBudget() {
+		return this.memoryBudget;
+	}
+
+	public void setMemoryBudget(DataSize memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public int getSubscriberBuffer() {
+		return this.subscriberBuffer;
+	}
+
+	public void setSubscriberBuffer(int subscriberBuffer) {
+		this.subscriberBuffer = subscriberBuffer;
+	}
+}
+
+/**
+ * A single hot stream of stored events shared by all {@code /queryStream} clients, so
+ * an extra client costs no database queries, backed by an in-memory window of the
+ * most recent events. A client resumes where it left off by passing back the
+ * timestamp and id of the last event it got, the same keyset {@code /query} pages
+ * with: on the instance that streamed that event, for as long as it's in the window,
+ * the stream picks up right after it; otherwise with the window's events that come
+ * after it in timestamp and id order.
+ * <p>
+ * The window is a ring laid out in columns (primitive timestamps, application names
+ * interned to ids) rather than as event objects, so it costs a handful of arrays to
+ * the garbage collector whatever its size. Its capacity is the memory budget divided
+ * by an estimate of the bytes taken per event.
+ */
+class UriQueriedStream {
+
+	/**
+	 * Timestamp, application id, references to the id and URI and the strings behind
+	 * them.
+	 */
+	static final int ESTIMATED_BYTES_PER_EVENT = 8 + 4 + 4 + 4 + 64 + 96;
+
+	private final DirectProcessor<UriQueried> processor = DirectProcessor.create();
+
+	private final int capacity;
+
+	private final long[] timestamps;
+
+	private final int[] applications;
+
+	private final String[] ids;
+
+	private final String[] uris;
+
+	private final Map<String, Integer> applicationIds = new HashMap<>();
+
+	private final List<String> applicationNames = new ArrayList<>();
+
+	private long sequence;
+
+	private final EventStreamProperties properties;
+
+	private final AtomicInteger subscribers = new AtomicInteger();
+
+	private final Counter dropped;
+
+	UriQueriedStream(EventStreamProperties properties, MeterRegistry meterRegistry) {
+		this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8,
+				properties.getMemoryBudget().toBytes() / ESTIMATED_BYTES_PER_EVENT));
+		this.timestamps = new long[this.capacity];
+		this.applications = new int[this.capacity];
+		this.ids = new String[this.capacity];
+		this.uris = new String[this.capacity];
+		this.properties = properties;
+		this.dropped = Counter.builder("events.stream.dropped")
+				.description("Events dropped for subscribers that didn't keep up")
+				.register(meterRegistry);
+		Gauge.builder("events.stream.subscribers", this.subscribers, AtomicInteger::get)
+				.register(meterRegistry);
+		Gauge.builder("events.recent.size", this, UriQueriedStream::size)
+				.description("Events held in the in-memory window")
+				.register(meterRegistry);
+		Gauge.builder("events.recent.capacity", this, stream -> stream.capacity)
+				.description("Events the in-memory window can hold within its memory budget")
+				.register(meterRegistry);
+	}
+
+	synchronized void publish(List<UriQueried> events) {
+		for (UriQueried event : events) {
+			int slot = (int) (++this.sequence % this.capacity);
+			this.timestamps[slot] = event.getTimestamp();
+			this.applications[slot] = event.getApplicationName() == null ? -1
+					: this.applicationIds.computeIfAbsent(event.getApplicationName(), name -> {
+						this.applicationNames.add(name);
+						return this.applicationNames.size() - 1;
+					});
+			this.ids[slot] = event.getId();
+			this.uris[slot] = event.getUri();
+			this.processor.onNext(event);
+		}
+	}
+
+	/**
+	 * Events published from now on, preceded by those in the window that follow the
+	 * given event if there's one, optionally narrowed down to an application and a
+	 * URI prefix.
+	 */
+	Flux<UriQueried> events(Long sinceTimestamp, String sinceId, String applicationName, String uriPrefix) {
+		Predicate<UriQueried> matches = event -> matches(event, applicationName, uriPrefix);
+		return Flux.<UriQueried>create(sink -> {
+			synchronized (this) {
+				// subscribed and replayed under the lock, so that nothing is published in between
+				Disposable live = this.processor.filter(matches).subscribe(sink::next, sink::error, sink::complete);
+				sink.onDispose(live);
+				if (sinceId == null) {
+					return;
+				}
+				long first = this.sequence - size() + 1;
+				long position = first - 1;
+				for (long s = this.sequence; s >= first && position < first; s--) {
+					if (sinceId.equals(this.ids[(int) (s % this.capacity)])) {
+						position = s;
+					}
+				}
+				boolean found = position >= first;
+				for (long s = found ? position + 1 : first; s <= this.sequence; s++) {
+					UriQueried event = read((int) (s % this.capacity));
+					if ((found || follows(event, sinceTimestamp, sinceId)) && matches.test(event)) {
+						sink.next(event);
+					}
+				}
+			}
+		})
+				.onBackpressureBuffer(this.properties.getSubscriberBuffer(), event -> this.dropped.increment(),
+						BufferOverflowStrategy.DROP_OLDEST)
+				.doOnSubscribe(subscription -> this.subscribers.incrementAndGet())
+				.doFinally(signal -> this.subscribers.decrementAndGet());
+	}
+
+	/**
+	 * Events in the window from the given timestamp on, oldest first.
+	 */
+	synchronized List<UriQueried> recent(long from, String applicationName, String uriPrefix) {
+		List<UriQueried> recent = new ArrayList<>();
+		for (long s = this.sequence - size() + 1; s <= this.sequence; s++) {
+			int slot = (int) (s % this.capacity);
+			if (this.timestamps[slot] >= from) {
+				UriQueried event = read(slot);
+				if (matches(event, applicationName, uriPrefix)) {
+					recent.add(event);
+				}
+			}
+		}
+		return recent;
+	}
+
+	/**
+	 * Timestamp of the oldest event in the window, or {@link Long#MAX_VALUE} while
+	 * nothing has been published. Anything older has to be read from Mongo.
+	 */
+	synchronized long oldest() {
+		if (this.sequence == 0) {
+			return Long.MAX_VALUE;
+		}
+		return this.timestamps[(int) ((this.sequence - size() + 1) % this.capacity)];
+	}
+
+	synchronized int size() {
+		return (int) Math.min(this.sequence, this.capacity);
+	}
+
+	private UriQueried read(int slot) {
+		int application = this.applications[slot];
+		UriQueried event = new UriQueried(application < 0 ? null : this.applicationNames.get(application),
+				this.timestamps[slot], this.uris[slot]);
+		event.setId(this.ids[slot]);
+		return event;
+	}
+
+	/**
+	 * Whether the event comes after the given timestamp and id in the order
+	 * {@code /query} pages in.
+	 */
+	static boolean follows(UriQueried event, long timestamp, String id) {
+		return event.getTimestamp() > timestamp
+				|| (event.getTimestamp() == timestamp && event.getId() != null && event.getId().compareTo(id) > 0);
+	}
+
+	private static boolean matches(UriQueried event, String applicationName, String uriPrefix) {
+		return (applicationName == null || applicationName.equals(event.getApplicationName()))
+				&& (uriPrefix == null || (event.getUri() != null && event.getUri().startsWith(uriPrefix)));
+	}
+}
+
 @RestController
 class UriQueriedController {
-	private final UriQueriedReactiveRepository repository;
+
+	static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+	static final int MAX_PAGE_SIZE = 10_000;
+
+	private final UriQueriedRollups rollups;
+
+	private final UriQueriedStream stream;
+
+	private final UriQueriedPages pages;
+
+	private final UriQueriedSketches sketches;
+
+	private final EventSketchProperties sketchProperties;
+
+	private final ReportingPeers peers;
 
 	private final AtomicLong gauge;
 
-	UriQueriedController(UriQueriedReactiveRepository repository, MeterRegistry meterRegistry) {
-		this.repository = repository;
+	UriQueriedController(UriQueriedRollups rollups, UriQueriedStream stream, ReactiveMongoOperations mongoOperations,
+			UriQueriedSketches sketches, EventSketchProperties sketchProperties, ReportingPeers peers,
+			MeterRegistry meterRegistry) {
+		this.peers = peers;
+		this.sketches = sketches;
+		this.sketchProperties = sketchProperties;
+		this.rollups = rollups;
+		this.stream = stream;
+		this.pages = new UriQueriedPages(mongoOperations);
 		this.gauge = meterRegistry.gauge("queries", new AtomicLong());
 	}
 
-	@GetMapping("/query")
-	Flux<UriQueried> queries() {
-		return this.repository.findAll();
+	/**
+	 * A page of stored events, oldest first. To get the next page pass the timestamp
+	 * and id of the last event as {@code after=<timestamp>:<id>}; an empty page means
+	 * there's nothing more. Streams as NDJSON when asked for.
+	 */
+	@GetMapping(value = "/query", produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE, "application/x-ndjson" })
+	Flux<Map<String, Object>> queries(@RequestParam(required = false) String applicationName,
+			@RequestParam(required = false) String uriPrefix, @RequestParam(required = false) Long from,
+			@RequestParam(required = false) Long to, @RequestParam(required = false) String after,
+			@RequestParam(defaultValue = "1000") int limit, @RequestParam(defaultValue = "") List<String> fields) {
+		if (limit < 1 || limit > MAX_PAGE_SIZE) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE));
+		}
+		if (!UriQueriedPages.FIELDS.containsAll(fields)) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "fields must be among " + UriQueriedPages.FIELDS));
+		}
+		if (after != null && !after.matches(UriQueriedPages.KEY)) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "after must be <timestamp>:<id>"));
+		}
+		return this.pages.find(applicationName, uriPrefix, from, to, after, limit, fields);
 	}
 
 	@GetMapping("/count")
 	Mono<Long> count() {
-		return this.repository.count();
+		return this.rollups.total();
+	}
+
+	/**
+	 * Event counts per application and URI in minute or hour buckets, defaulting to
+	 * the last hour.
+	 */
+	@GetMapping("/rollups/{granularity}")
+	Flux<UriQueriedRollup> rollups(@PathVariable String granularity,
+			@RequestParam(required = false) Long from, @RequestParam(required = false) Long to,
+			@RequestParam(required = false) String applicationName, @RequestParam(required = false) String uri) {
+		UriQueriedRollup.Granularity parsed;
+		try {
+			parsed = UriQueriedRollup.Granularity.valueOf(granularity.toUpperCase(Locale.ROOT));
+		}
+		catch (IllegalArgumentException e) {
+			return Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown granularity [" + granularity + "]"));
+		}
+		long end = to != null ? to : System.currentTimeMillis();
+		long start = from != null ? from : end - TimeUnit.HOURS.toMillis(1);
+		return this.rollups.find(parsed, start, end, applicationName, uri);
 	}
 
+	/**
+	 * Events as they are stored. To resume a broken stream, on this or any other
+	 * instance, pass the timestamp and id of the last event received as
+	 * {@code since=<timestamp>:<id>}; events older than the in-memory window are read
+	 * from Mongo. A resumed stream may repeat a few events.
+	 * <p>
+	 * With peers every instance stores only its share of the partitions, so their
+	 * streams are merged with this one, unless {@code local} is set, and a stream is
+	 * resumed from Mongo.
+	 */
 	@GetMapping(value = "/queryStream", produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
-	Flux<UriQueried> queriesStreamFromLastTime() {
-		final long millis = 1000;
-		return Flux.interval(Duration.ofSeconds(millis / 1000))
-				.flatMap(id -> this.repository.findAllByTimestampIsAfter(System.currentTimeMillis() - millis));
+	Flux<UriQueried> queriesStream(@RequestParam(required = false) String since,
+			@RequestParam(required = false) String applicationName, @RequestParam(required = false) String uriPrefix,
+			@RequestParam(defaultValue = "false") boolean local) {
+		if (since != null && !since.matches(UriQueriedPages.KEY)) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "since must be <timestamp>:<id>"));
+		}
+		long timestamp = since != null ? Long.parseLong(since.substring(0, since.indexOf(':'))) : 0L;
+		String id = since != null ? since.substring(since.indexOf(':') + 1).toLowerCase(Locale.ROOT) : null;
+		if (!local && this.peers.partitioned()) {
+			Flux<UriQueried> live = Flux.merge(this.stream.events(null, null, applicationName, uriPrefix),
+					this.peers.stream(applicationName, uriPrefix));
+			if (since == null) {
+				return live;
+			}
+			// subscribed to the live streams first, so that nothing stored during the replay is missed
+			return Flux.mergeSequential(this.pages.older(timestamp, Long.MAX_VALUE, applicationName, uriPrefix)
+					.filter(event -> UriQueriedStream.follows(event, timestamp, id)), live);
+		}
+		if (since == null) {
+			return this.stream.events(null, null, applicationName, uriPrefix);
+		}
+		return Flux.defer(() -> {
+			long oldest = this.stream.oldest();
+			Flux<UriQueried> resumed = this.stream.events(timestamp, id, applicationName, uriPrefix);
+			if (timestamp >= oldest) {
+				return resumed;
+			}
+			return this.pages.older(timestamp, oldest, applicationName, uriPrefix)
+					.filter(event -> UriQueriedStream.follows(event, timestamp, id))
+					.concatWith(resumed);
+		});
+	}
+
+	/**
+	 * Events from the given timestamp on, by default from the last five minutes.
+	 * Events still in the in-memory window are served from there; Mongo is only
+	 * queried for the older part of the range, or for all of it when there are peers,
+	 * as the window then only holds this instance's share of the partitions.
+	 */
+	@GetMapping(value = "/recent", produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE, "application/x-ndjson" })
+	Flux<UriQueried> recent(@RequestParam(required = false) Long from,
+			@RequestParam(required = false) String applicationName, @RequestParam(required = false) String uriPrefix) {
+		long start = from != null ? from : System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5);
+		if (this.peers.partitioned()) {
+			return this.pages.older(start, Long.MAX_VALUE, applicationName, uriPrefix);
+		}
+		return Flux.defer(() -> {
+			long oldest = this.stream.oldest();
+			Flux<UriQueried> recent = Flux.fromIterable(this.stream.recent(start, applicationName, uriPrefix));
+			if (start >= oldest) {
+				return recent;
+			}
+			return this.pages.older(start, oldest, applicationName, uriPrefix).concatWith(recent);
+		});
+	}
+
+	/**
+	 * Approximate number of distinct URIs and users over the last given minutes.
+	 */
+	@GetMapping("/analytics/distinct")
+	Mono<Map<String, Long>> distinct(@RequestParam(defaultValue = "15") int minutes) {
+		return window(minutes).map(window -> {
+			Map<String, Long> distinct = new LinkedHashMap<>();
+			distinct.put("uris", window.uris.estimate());
+			distinct.put("users", window.users.estimate());
+			return distinct;
+		});
+	}
+
+	/**
+	 * Approximately the most queried URIs of an application over the last given
+	 * minutes, with the error bound of every count.
+	 */
+	@GetMapping("/analytics/top")
+	Flux<TopUri> top(@RequestParam String applicationName, @RequestParam(defaultValue = "10") int k,
+			@RequestParam(defaultValue = "15") int minutes) {
+		if (k < 1 || k > this.sketchProperties.getTopCapacity()) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"k must be between 1 and " + this.sketchProperties.getTopCapacity()));
+		}
+		return window(minutes).flatMapIterable(window -> {
+			SpaceSaving top = window.top.get(applicationName);
+			return top != null ? top.top(k) : Collections.emptyList();
+		});
+	}
+
+	/**
+	 * The raw sketches over the last given minutes, for merging with other replicas.
+	 */
+	@GetMapping("/analytics/sketches")
+	Mono<SketchSnapshot> sketches(@RequestParam(defaultValue = "15") int minutes) {
+		return window(minutes).map(SketchWindow::snapshot);
+	}
+
+	/**
+	 * Like {@code /analytics/distinct}, merged over all reporting instances.
+	 */
+	@GetMapping("/analytics/cluster/distinct")
+	Mono<Map<String, Long>> clusterDistinct(@RequestParam(defaultValue = "15") int minutes) {
+		return window(minutes).flatMap(window -> this.peers.merge(window, minutes)).map(cluster -> {
+			Map<String, Long> distinct = new LinkedHashMap<>();
+			distinct.put("uris", cluster.window.uris.estimate());
+			distinct.put("users", cluster.window.users.estimate());
+			distinct.put("instances", (long) cluster.instances);
+			distinct.put("failedInstances", (long) cluster.failed);
+			return distinct;
+		});
+	}
+
+	/**
+	 * Like {@code /analytics/top}, merged over all reporting instances.
+	 */
+	@GetMapping("/analytics/cluster/top")
+	Flux<TopUri> clusterTop(@RequestParam String applicationName, @RequestParam(defaultValue = "10") int k,
+			@RequestParam(defaultValue = "15") int minutes) {
+		if (k < 1 || k > this.sketchProperties.getTopCapacity()) {
+			return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"k must be between 1 and " + this.sketchProperties.getTopCapacity()));
+		}
+		return window(minutes).flatMap(window -> this.peers.merge(window, minutes)).flatMapIterable(cluster -> {
+			SpaceSaving top = cluster.window.top.get(applicationName);
+			return top != null ? top.top(k) : Collections.emptyList();
+		});
+	}
+
+	private Mono<SketchWindow> window(int minutes) {
+		if (minutes < 1 || minutes > this.sketchProperties.getWindows()) {
+			return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+					"minutes must be between 1 and " + this.sketchProperties.getWindows()));
+		}
+		return Mono.fromSupplier(() -> this.sketches.last(minutes, System.currentTimeMillis()));
 	}
 
 	@Scheduled(fixedRate = 1000L)
@@ -84,6 +1944,227 @@ class UriQueriedController {
 	}
 }
 
+/**
+ * Reads the events out of incoming messages. A message holds either a single JSON
+ * event, a (possibly gzipped) JSON array of events when the producer batches, or
+ * one or more events in the {@link UriQueriedBinaryCodec binary format}. The content
+ * type header tells them apart, so producers may use any of them.
+ */
+class UriQueriedDecoder {
+
+	static final String BATCH_CONTENT_TYPE = "application/vnd.uriqueried.batch+json";
+
+	static final String CONTENT_ENCODING = "x-content-encoding";
+
+	private static final TypeReference<List<UriQueried>> BATCH = new TypeReference<List<UriQueried>>() {
+	};
+
+	private static final MimeType BATCH_MIME_TYPE = MimeType.valueOf(BATCH_CONTENT_TYPE);
+
+	private static final MimeType BINARY_MIME_TYPE = MimeType.valueOf(UriQueriedBinaryCodec.CONTENT_TYPE);
+
+	private final ObjectMapper objectMapper;
+
+	private final UriQueriedBinaryCodec binaryCodec = new UriQueriedBinaryCodec();
+
+	UriQueriedDecoder(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	Flux<UriQueried> decode(Message<byte[]> message) {
+		try {
+			MimeType contentType = contentType(message);
+			if (BINARY_MIME_TYPE.equalsTypeAndSubtype(contentType)) {
+				return Flux.fromIterable(this.binaryCodec.decode(uncompressed(message)));
+			}
+			if (BATCH_MIME_TYPE.equalsTypeAndSubtype(contentType)) {
+				return Flux.fromIterable(this.objectMapper.readValue(uncompressed(message), BATCH));
+			}
+			return Flux.just(this.objectMapper.readValue(message.getPayload(), UriQueried.class));
+		}
+		catch (IOException e) {
+			return Flux.error(e);
+		}
+	}
+
+	private MimeType contentType(Message<byte[]> message) {
+		String contentType = header(message, MessageHeaders.CONTENT_TYPE);
+		return contentType != null ? MimeType.valueOf(contentType) : null;
+	}
+
+	private InputStream uncompressed(Message<byte[]> message) throws IOException {
+		InputStream payload = new ByteArrayInputStream(message.getPayload());
+		if ("gzip".equals(header(message, CONTENT_ENCODING))) {
+			return new GZIPInputStream(payload);
+		}
+		return payload;
+	}
+
+	/**
+	 * The {@code user} baggage the message was sent with, if any.
+	 */
+	static String user(Message<?> message) {
+		String user = header(message, "baggage_user");
+		return user != null ? user : header(message, "baggage-user");
+	}
+
+	private static String header(Message<?> message, String name) {
+		Object value = message.getHeaders().get(name);
+		if (value instanceof byte[]) {
+			return new String((byte[]) value, StandardCharsets.UTF_8);
+		}
+		return value != null ? value.toString() : null;
+	}
+}
+
+/**
+ * Compact binary encoding of {@link UriQueried} events, as written by the producers. A
+ * payload holds one or more events:
+ * <pre>
+ * version         byte (2)
+ * event count     varint
+ * dictionary size varint, followed by that many strings
+ * per event       application name (dictionary index, varint)
+ *                 timestamp (zig-zag varint delta from the previous event)
+ *                 URI origin, i.e. scheme and authority (dictionary index, varint)
+ *                 rest of the URI (string)
+ *                 user (dictionary index + 1, varint; 0 when there's none)
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Version 1 payloads, without
+ * users, are still read.
+ */
+class UriQueriedBinaryCodec {
+
+	static final String CONTENT_TYPE = "application/vnd.uriqueried+binary";
+
+	static final int VERSION = 2;
+
+	List<UriQueried> decode(InputStream in) throws IOException {
+		int version = in.read();
+		if (version != VERSION && version != 1) {
+			throw new IOException("Unsupported binary event format version [" + version + "]");
+		}
+		int count = (int) readVarint(in);
+		String[] dictionary = new String[(int) readVarint(in)];
+		for (int i = 0; i < dictionary.length; i++) {
+			dictionary[i] = readString(in);
+		}
+		List<UriQueried> events = new ArrayList<>(count);
+		long timestamp = 0;
+		for (int i = 0; i < count; i++) {
+			String applicationName = entry(dictionary, readVarint(in));
+			timestamp += unZigZag(readVarint(in));
+			String uri = entry(dictionary, readVarint(in)) + readString(in);
+			UriQueried event = new UriQueried(applicationName, timestamp, uri);
+			if (version > 1) {
+				long user = readVarint(in);
+				event.setUser(user == 0 ? null : entry(dictionary, user - 1));
+			}
+			events.add(event);
+		}
+		return events;
+	}
+
+	byte[] encode(List<UriQueried> events) {
+		Map<String, Integer> dictionary = new LinkedHashMap<>();
+		for (UriQueried event : events) {
+			dictionary.putIfAbsent(nullToEmpty(event.getApplicationName()), dictionary.size());
+			dictionary.putIfAbsent(origin(nullToEmpty(event.getUri())), dictionary.size());
+			if (event.getUser() != null) {
+				dictionary.putIfAbsent(event.getUser(), dictionary.size());
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + events.size() * 16);
+		out.write(VERSION);
+		writeVarint(out, events.size());
+		writeVarint(out, dictionary.size());
+		dictionary.keySet().forEach(entry -> writeString(out, entry));
+		long previous = 0;
+		for (UriQueried event : events) {
+			String uri = nullToEmpty(event.getUri());
+			String origin = origin(uri);
+			writeVarint(out, dictionary.get(nullToEmpty(event.getApplicationName())));
+			writeVarint(out, zigZag(event.getTimestamp() - previous));
+			writeVarint(out, dictionary.get(origin));
+			writeString(out, uri.substring(origin.length()));
+			writeVarint(out, event.getUser() != null ? dictionary.get(event.getUser()) + 1 : 0);
+			previous = event.getTimestamp();
+		}
+		return out.toByteArray();
+	}
+
+	static String origin(String uri) {
+		int scheme = uri.indexOf("://");
+		if (scheme < 0) {
+			return "";
+		}
+		int path = uri.indexOf('/', scheme + 3);
+		return path < 0 ? uri : uri.substring(0, path);
+	}
+
+	private static String entry(String[] dictionary, long index) throws IOException {
+		if (index < 0 || index >= dictionary.length) {
+			throw new IOException("Dictionary index [" + index + "] out of bounds");
+		}
+		return dictionary[(int) index];
+	}
+
+	private static String nullToEmpty(String value) {
+		return value != null ? value : "";
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		int length = (int) readVarint(in);
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			read += n;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+}
+
 interface UriQueriedReactiveRepository extends ReactiveCrudRepository<UriQueried, String> {
 
 	Flux<UriQueried> findAllByTimestampIsAfter(long timestamp);
@@ -102,12 +2183,26 @@ class UriQueried {
 
 	private String uri;
 
+	/**
+	 * The timestamp as a date, which is what a TTL index can expire documents by.
+	 */
+	private Date date;
+
+	/**
+	 * The {@code user} baggage of the request the event comes from, only read from
+	 * incoming messages for the analytics.
+	 */
+	@Transient
+	@JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+	private String user;
+
 	public UriQueried() {
 	}
 
 	public UriQueried(String applicationName, long timestamp, String uri) {
 		this.applicationName = applicationName;
 		this.timestamp = timestamp;
+		this.date = new Date(timestamp);
 		this.uri = uri;
 	}
 
@@ -133,6 +2228,7 @@ class UriQueried {
 
 	public void setTimestamp(long timestamp) {
 		this.timestamp = timestamp;
+		this.date = new Date(timestamp);
 	}
 
 	public String getUri() {
@@ -143,6 +2239,18 @@ class UriQueried {
 		this.uri = uri;
 	}
 
+	Date getDate() {
+		return this.date;
+	}
+
+	public String getUser() {
+		return this.user;
+	}
+
+	public void setUser(String user) {
+		this.user = user;
+	}
+
 	@Override
 	public String toString() {
 		return "UriQueried{" +
@@ -0,0 +1,111 @@
+package com.example.reporting;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.BDDMockito;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import org.springframework.cloud.stream.endpoint.BindingsEndpoint;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class EventIntakeTests {
+
+	List<BindingsEndpoint.State> states = new ArrayList<>();
+
+	@Test
+	void should_pause_the_binding_at_the_max_backlog_and_resume_it_at_half() {
+		EventIntake intake = new EventIntake(EventIntake.BINDING, 4, (binding, state) -> this.states.add(state));
+
+		for (int i = 0; i < 5; i++) {
+			intake.received();
+		}
+		then(this.states).containsExactly(BindingsEndpoint.State.PAUSED);
+		then(intake.paused()).isTrue();
+
+		intake.acknowledged();
+		intake.acknowledged();
+		then(this.states).containsExactly(BindingsEndpoint.State.PAUSED);
+		intake.acknowledged();
+		then(this.states).containsExactly(BindingsEndpoint.State.PAUSED, BindingsEndpoint.State.RESUMED);
+		then(intake.paused()).isFalse();
+	}
+
+	@Test
+	void should_restart_the_binding_and_write_the_redelivered_messages_when_the_writer_fails() throws Exception {
+		AtomicInteger deliveries = new AtomicInteger();
+		UriQueriedReactiveRepository repository = BDDMockito.mock(UriQueriedReactiveRepository.class);
+		// Mongo is down until the messages get consumed again
+		BDDMockito.given(repository.saveAll(BDDMockito.<Iterable<UriQueried>>any()))
+				.willAnswer(invocation -> Flux.defer(() -> deliveries.get() < 2
+						? Flux.error(new IllegalStateException("mongo is down"))
+						: Flux.fromIterable(invocation.<Iterable<UriQueried>>getArgument(0))));
+		UriQueriedRollups rollups = BDDMockito.mock(UriQueriedRollups.class);
+		BDDMockito.given(rollups.record(BDDMockito.any())).willReturn(Mono.empty());
+		EventWriteProperties properties = properties();
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		EventIntake intake = new EventIntake(EventIntake.BINDING, properties.getMaxBacklog(),
+				(binding, state) -> this.states.add(state));
+		List<Acknowledgment> acknowledgments = Arrays.asList(BDDMockito.mock(Acknowledgment.class),
+				BDDMockito.mock(Acknowledgment.class), BDDMockito.mock(Acknowledgment.class));
+		List<Message<byte[]>> messages = messages(acknowledgments);
+
+		Mono<Void> events = new ReportingApplication().events(new UriQueriedDecoder(new ObjectMapper()),
+				new UriQueriedWriter(repository, BDDMockito.mock(ReactiveMongoOperations.class), properties, meterRegistry),
+				rollups, new UriQueriedStream(new EventStreamProperties(), meterRegistry),
+				new UriQueriedSketches(new EventSketchProperties()), properties, intake, meterRegistry)
+				// every subscription consumes from the committed offsets, i.e. from the start
+				.apply(Flux.defer(() -> {
+					deliveries.incrementAndGet();
+					return Flux.fromIterable(messages);
+				}));
+
+		StepVerifier.create(events).expectComplete().verify(Duration.ofSeconds(5));
+
+		then(deliveries).hasValue(2);
+		then(this.states).containsExactly(BindingsEndpoint.State.STOPPED, BindingsEndpoint.State.STARTED);
+		then(intake.backlog()).isZero();
+		acknowledgments.forEach(acknowledgment -> BDDMockito.then(acknowledgment).should().acknowledge());
+	}
+
+	private static List<Message<byte[]>> messages(List<Acknowledgment> acknowledgments) throws Exception {
+		ObjectMapper objectMapper = new ObjectMapper();
+		List<Message<byte[]>> messages = new ArrayList<>();
+		for (int i = 0; i < acknowledgments.size(); i++) {
+			messages.add(MessageBuilder.withPayload(objectMapper.writeValueAsBytes(
+					new UriQueried("fraud-detection", 1000L + i, "http://localhost:9080/frauds/" + i)))
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.setHeader(KafkaHeaders.ACKNOWLEDGMENT, acknowledgments.get(i))
+					.build());
+		}
+		return messages;
+	}
+
+	private static EventWriteProperties properties() {
+		EventWriteProperties properties = new EventWriteProperties();
+		properties.setMaxWait(Duration.ofMillis(10));
+		properties.setRetryBackoff(Duration.ofMillis(1));
+		properties.setMaxRetryBackoff(Duration.ofMillis(1));
+		properties.setMaxRetries(3);
+		return properties;
+	}
+}
@@ -2,6 +2,8 @@ package com.example.reporting;
 
 import org.junit.jupiter.api.Test;
 import org.mockito.BDDMockito;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -34,12 +36,13 @@ class MessagingTest {
 	void should_reject_a_loan_for_a_fraud() {
 		stubTrigger.trigger("trigger_fraud_uri");
 
-		BDDMockito.then(repository).should(BDDMockito.atLeastOnce())
-				.save(BDDMockito.argThat(argument ->
-								"fraud-detection".equals(argument.getApplicationName()) &&
-										StringUtils.hasText(argument.getUri()) &&
-										argument.getTimestamp() != 0
-						)
+		BDDMockito.then(repository).should(BDDMockito.timeout(5000).atLeastOnce())
+				.saveAll(BDDMockito.<Iterable<UriQueried>>argThat(argument -> {
+							UriQueried uriQueried = argument.iterator().next();
+							return "fraud-detection".equals(uriQueried.getApplicationName()) &&
+									StringUtils.hasText(uriQueried.getUri()) &&
+									uriQueried.getTimestamp() != 0;
+						})
 				);
 	}
 
@@ -49,7 +52,18 @@ class MessagingTest {
 		@Bean
 		@Primary
 		UriQueriedReactiveRepository mockUriQueriedReactiveRepository() {
-			return BDDMockito.mock(UriQueriedReactiveRepository.class);
+			UriQueriedReactiveRepository repository = BDDMockito.mock(UriQueriedReactiveRepository.class);
+			BDDMockito.given(repository.saveAll(BDDMockito.<Iterable<UriQueried>>any()))
+					.willAnswer(invocation -> Flux.fromIterable(invocation.<Iterable<UriQueried>>getArgument(0)));
+			return repository;
+		}
+
+		@Bean
+		@Primary
+		UriQueriedRollups mockUriQueriedRollups() {
+			UriQueriedRollups rollups = BDDMockito.mock(UriQueriedRollups.class);
+			BDDMockito.given(rollups.record(BDDMockito.any())).willReturn(Mono.empty());
+			return rollups;
 		}
 	}
 
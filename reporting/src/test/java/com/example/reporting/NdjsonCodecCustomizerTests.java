@@ -0,0 +1,47 @@
+package com.example.reporting;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.EncoderHttpMessageWriter;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class NdjsonCodecCustomizerTests {
+
+	ServerCodecConfigurer configurer = ServerCodecConfigurer.create();
+
+	@Test
+	void should_write_ndjson_next_to_the_default_json_types() {
+		new ReportingApplication().ndjsonCodecCustomizer(new ObjectMapper()).customize(this.configurer);
+
+		for (String mediaType : new String[] { "application/json", "application/problem+json", "application/stream+json",
+				"application/x-ndjson" }) {
+			then(this.configurer.getWriters().stream()
+					.anyMatch(writer -> writer.canWrite(ResolvableType.forClass(Map.class), MediaType.parseMediaType(mediaType))))
+					.as("writes %s", mediaType).isTrue();
+		}
+		then(encoder().getStreamingMediaTypes()).contains(MediaType.APPLICATION_STREAM_JSON,
+				UriQueriedController.APPLICATION_NDJSON);
+	}
+
+	private Jackson2JsonEncoder encoder() {
+		return this.configurer.getWriters().stream()
+				.filter(EncoderHttpMessageWriter.class::isInstance)
+				.map(writer -> ((EncoderHttpMessageWriter<?>) writer).getEncoder())
+				.filter(Jackson2JsonEncoder.class::isInstance)
+				.map(Jackson2JsonEncoder.class::cast)
+				.findFirst()
+				.get();
+	}
+}
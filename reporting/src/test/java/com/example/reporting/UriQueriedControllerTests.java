@@ -0,0 +1,120 @@
+package com.example.reporting;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.BDDMockito;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+
+import static com.example.reporting.UriQueriedStreamTests.event;
+import static com.example.reporting.UriQueriedStreamTests.id;
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedControllerTests {
+
+	ReactiveMongoOperations mongoOperations = BDDMockito.mock(ReactiveMongoOperations.class);
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	UriQueriedStream stream = new UriQueriedStream(new EventStreamProperties(), this.meterRegistry);
+
+	ClusterProperties cluster = new ClusterProperties();
+
+	// the peer's stream of the events of its partitions
+	WebClient webClient = WebClient.builder()
+			.exchangeFunction(request -> Mono.just(ClientResponse.create(HttpStatus.OK)
+					.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_STREAM_JSON_VALUE)
+					.body(request.url().getQuery().contains("local=true")
+							? "{\"id\":\"" + id(7) + "\",\"applicationName\":\"loan-issuance\",\"timestamp\":7000}\n" : "")
+					.build()))
+			.build();
+
+	UriQueriedController controller = new UriQueriedController(null, this.stream, this.mongoOperations, null,
+			new EventSketchProperties(), new ReportingPeers(this.webClient, this.cluster, new EventSketchProperties()),
+			this.meterRegistry);
+
+	@Test
+	void should_resume_a_stream_from_mongo_for_events_older_than_the_window() {
+		this.stream.publish(Arrays.asList(event(5, 5000L), event(6, 6000L)));
+		BDDMockito.given(this.mongoOperations.find(BDDMockito.any(Query.class), BDDMockito.eq(UriQueried.class)))
+				.willReturn(Flux.just(event(1, 1000L), event(2, 1000L), event(3, 2000L)));
+
+		StepVerifier.create(this.controller.queriesStream("1000:" + id(1), null, null, false).map(UriQueried::getId))
+				.expectNext(id(2), id(3), id(5), id(6))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_merge_the_streams_of_peers_when_partitioned() {
+		this.cluster.setPeers(Collections.singletonList(URI.create("http://peer:9084")));
+
+		StepVerifier.create(this.controller.queriesStream(null, null, null, false).map(UriQueried::getId))
+				.expectNext(id(7))
+				.then(() -> this.stream.publish(Arrays.asList(event(8, 8000L))))
+				.expectNext(id(8))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_resume_from_mongo_and_merge_the_streams_of_peers_when_partitioned() {
+		this.cluster.setPeers(Collections.singletonList(URI.create("http://peer:9084")));
+		// this instance's window doesn't hold the events of the other partitions
+		this.stream.publish(Arrays.asList(event(5, 5000L)));
+		BDDMockito.given(this.mongoOperations.find(BDDMockito.any(Query.class), BDDMockito.eq(UriQueried.class)))
+				.willReturn(Flux.just(event(2, 2000L), event(4, 4000L), event(5, 5000L)));
+
+		StepVerifier.create(this.controller.queriesStream("1000:" + id(1), null, null, false).map(UriQueried::getId))
+				.expectNext(id(2), id(4), id(5), id(7))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_read_recent_events_from_mongo_when_partitioned() {
+		this.cluster.setPeers(Collections.singletonList(URI.create("http://peer:9084")));
+		this.stream.publish(Arrays.asList(event(5, 5000L)));
+		BDDMockito.given(this.mongoOperations.find(BDDMockito.any(Query.class), BDDMockito.eq(UriQueried.class)))
+				.willReturn(Flux.just(event(4, 4000L), event(5, 5000L)));
+
+		StepVerifier.create(this.controller.recent(4000L, null, null).map(UriQueried::getId))
+				.expectNext(id(4), id(5))
+				.verifyComplete();
+	}
+
+	@Test
+	void should_stream_only_local_events_to_peers() {
+		this.cluster.setPeers(Collections.singletonList(URI.create("http://peer:9084")));
+
+		StepVerifier.create(this.controller.queriesStream(null, null, null, true).map(UriQueried::getId))
+				.then(() -> this.stream.publish(Arrays.asList(event(8, 8000L))))
+				.expectNext(id(8))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_reject_a_resume_token_that_is_not_a_timestamp_and_id() {
+		StepVerifier.create(this.controller.queriesStream("17", null, null, false))
+				.verifyErrorSatisfies(e -> then(((ResponseStatusException) e).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST));
+	}
+}
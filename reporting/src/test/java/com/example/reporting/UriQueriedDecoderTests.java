@@ -0,0 +1,153 @@
+package com.example.reporting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.assertj.core.groups.Tuple;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.assertj.core.groups.Tuple.tuple;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedDecoderTests {
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	UriQueriedDecoder decoder = new UriQueriedDecoder(this.objectMapper);
+
+	UriQueriedBinaryCodec codec = new UriQueriedBinaryCodec();
+
+	List<UriQueried> events = Arrays.asList(
+			new UriQueried("fraud-detection", 1_580_000_000_000L, "http://localhost:9080/frauds"),
+			new UriQueried("fraud-detection", 1_580_000_000_250L, "http://localhost:9080/frauds/changes?since=abc"),
+			new UriQueried("loan-issuance", 1_579_999_999_900L, "https://loan-issuance:9081/loan"),
+			new UriQueried("", 0L, "/relative/żółw"));
+
+	@Test
+	void should_round_trip_events_through_the_binary_codec() throws IOException {
+		List<UriQueried> decoded = this.codec.decode(new ByteArrayInputStream(this.codec.encode(this.events)));
+
+		then(decoded).extracting(UriQueried::getApplicationName, UriQueried::getTimestamp, UriQueried::getUri)
+				.containsExactlyElementsOf(tuples(this.events));
+	}
+
+	@Test
+	void should_be_smaller_than_json() throws IOException {
+		then(this.codec.encode(this.events).length).isLessThan(this.objectMapper.writeValueAsBytes(this.events).length);
+	}
+
+	@Test
+	void should_decode_a_single_json_event() throws IOException {
+		Message<byte[]> message = MessageBuilder.withPayload(this.objectMapper.writeValueAsBytes(this.events.get(0)))
+				.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+				.build();
+
+		StepVerifier.create(this.decoder.decode(message))
+				.expectNextMatches(event -> "fraud-detection".equals(event.getApplicationName())
+						&& event.getTimestamp() == 1_580_000_000_000L)
+				.verifyComplete();
+	}
+
+	@Test
+	void should_decode_a_gzipped_binary_batch() throws IOException {
+		Message<byte[]> message = MessageBuilder.withPayload(gzip(this.codec.encode(this.events)))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.setHeader(UriQueriedDecoder.CONTENT_ENCODING, "gzip".getBytes())
+				.build();
+
+		StepVerifier.create(this.decoder.decode(message).map(UriQueried::getUri))
+				.expectNext("http://localhost:9080/frauds", "http://localhost:9080/frauds/changes?since=abc",
+						"https://loan-issuance:9081/loan", "/relative/żółw")
+				.verifyComplete();
+	}
+
+	@Test
+	void should_decode_the_user_of_every_event_of_a_binary_batch() throws IOException {
+		List<UriQueried> events = Arrays.asList(event("marcin"), event("josh"), event(null), event("marcin"));
+		Message<byte[]> message = MessageBuilder.withPayload(this.codec.encode(events))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.build();
+
+		StepVerifier.create(this.decoder.decode(message).map(event -> String.valueOf(event.getUser())))
+				.expectNext("marcin", "josh", "null", "marcin")
+				.verifyComplete();
+	}
+
+	@Test
+	void should_decode_the_user_of_every_event_of_a_json_batch() {
+		Message<byte[]> message = MessageBuilder.withPayload(("[{\"applicationName\":\"loan-issuance\",\"timestamp\":1,"
+				+ "\"uri\":\"/loan\",\"user\":\"marcin\"},{\"applicationName\":\"loan-issuance\",\"timestamp\":2,"
+				+ "\"uri\":\"/loan\",\"user\":\"josh\"}]").getBytes(StandardCharsets.UTF_8))
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedDecoder.BATCH_CONTENT_TYPE)
+				.build();
+
+		StepVerifier.create(this.decoder.decode(message).map(UriQueried::getUser))
+				.expectNext("marcin", "josh")
+				.verifyComplete();
+	}
+
+	@Test
+	void should_decode_version_1_binary_payloads_without_users() throws IOException {
+		// one event of "loan-issuance" at 1 ms on "/loan"
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(new byte[] { 1, 1, 2, 13 });
+		payload.write("loan-issuance".getBytes(StandardCharsets.UTF_8));
+		payload.write(new byte[] { 0, 0, 2, 1, 5 });
+		payload.write("/loan".getBytes(StandardCharsets.UTF_8));
+
+		then(this.codec.decode(new ByteArrayInputStream(payload.toByteArray())))
+				.extracting(UriQueried::getApplicationName, UriQueried::getTimestamp, UriQueried::getUri, UriQueried::getUser)
+				.containsExactly(tuple("loan-issuance", 1L, "/loan", null));
+	}
+
+	@Test
+	void should_not_write_the_user_out() throws IOException {
+		then(this.objectMapper.writeValueAsString(event("marcin"))).doesNotContain("user", "marcin");
+	}
+
+	@Test
+	void should_fail_on_an_unknown_binary_version() {
+		Message<byte[]> message = MessageBuilder.withPayload(new byte[] { 42, 0, 0 })
+				.setHeader(MessageHeaders.CONTENT_TYPE, UriQueriedBinaryCodec.CONTENT_TYPE)
+				.build();
+
+		StepVerifier.create(this.decoder.decode(message))
+				.verifyError(IOException.class);
+	}
+
+	private static UriQueried event(String user) {
+		UriQueried event = new UriQueried("loan-issuance", 1_580_000_000_000L, "http://localhost:9081/loan");
+		event.setUser(user);
+		return event;
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(bytes);
+		}
+		return out.toByteArray();
+	}
+
+	private static List<Tuple> tuples(List<UriQueried> events) {
+		return events.stream()
+				.map(event -> tuple(event.getApplicationName(), event.getTimestamp(), event.getUri()))
+				.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,102 @@
+package com.example.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.assertj.core.groups.Tuple.tuple;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedSketchesTests {
+
+	@Test
+	void should_estimate_distinct_values_within_a_few_percent() {
+		HyperLogLog sketch = new HyperLogLog(14);
+		for (int i = 0; i < 100_000; i++) {
+			sketch.add("http://localhost:9080/frauds/" + i);
+			sketch.add("http://localhost:9080/frauds/" + i);
+		}
+
+		then(sketch.estimate()).isBetween(97_000L, 103_000L);
+	}
+
+	@Test
+	void should_estimate_the_union_of_merged_sketches() {
+		HyperLogLog first = new HyperLogLog(14);
+		HyperLogLog second = new HyperLogLog(14);
+		for (int i = 0; i < 50_000; i++) {
+			first.add("user-" + i);
+			second.add("user-" + (i + 25_000));
+		}
+
+		first.merge(second);
+
+		then(first.estimate()).isBetween(72_750L, 77_250L);
+	}
+
+	@Test
+	void should_find_the_most_frequent_items() {
+		SpaceSaving summary = new SpaceSaving(10);
+		for (int i = 0; i < 1_000; i++) {
+			summary.add("/frauds", 1);
+			if (i % 2 == 0) {
+				summary.add("/loan", 1);
+			}
+			summary.add("/frauds/" + i, 1);
+		}
+
+		List<TopUri> top = summary.top(2);
+
+		then(top).extracting(TopUri::getUri).containsExactly("/frauds", "/loan");
+		then(top.get(0).getCount() - top.get(0).getError()).isLessThanOrEqualTo(1_000L);
+		then(top.get(0).getCount()).isGreaterThanOrEqualTo(1_000L);
+	}
+
+	@Test
+	void should_merge_windows_of_several_replicas_through_snapshots() {
+		EventSketchProperties properties = new EventSketchProperties();
+		UriQueriedSketches first = new UriQueriedSketches(properties);
+		UriQueriedSketches second = new UriQueriedSketches(properties);
+		long now = System.currentTimeMillis();
+		first.record(events("fraud-detection", "http://localhost:9080/frauds", 30, now), "marcin");
+		second.record(events("fraud-detection", "http://localhost:9080/frauds", 20, now), "josh");
+		second.record(events("fraud-detection", "http://localhost:9080/frauds/marcin", 5, now), "josh");
+
+		SketchWindow merged = first.last(1, now);
+		merged.merge(SketchWindow.from(second.last(1, now).snapshot(), properties.getTopCapacity()));
+
+		then(merged.uris.estimate()).isEqualTo(2);
+		then(merged.users.estimate()).isEqualTo(2);
+		then(merged.top.get("fraud-detection").top(1)).extracting(TopUri::getUri, TopUri::getCount)
+				.containsExactly(tuple("http://localhost:9080/frauds", 50L));
+	}
+
+	@Test
+	void should_count_the_user_of_every_event_of_a_batch() {
+		UriQueriedSketches sketches = new UriQueriedSketches(new EventSketchProperties());
+		long now = System.currentTimeMillis();
+		List<UriQueried> batch = events("loan-issuance", "http://localhost:9081/loan", 100, now);
+		for (int i = 0; i < batch.size(); i++) {
+			// the last ones come from a producer that doesn't send users
+			batch.get(i).setUser(i < 90 ? "user-" + (i % 30) : null);
+		}
+
+		// the baggage of whichever request was current when the batch got sent
+		sketches.record(batch, "user-0");
+
+		then(sketches.last(1, now).users.estimate()).isEqualTo(30);
+	}
+
+	private static List<UriQueried> events(String applicationName, String uri, int count, long timestamp) {
+		List<UriQueried> events = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			events.add(new UriQueried(applicationName, timestamp, uri));
+		}
+		return events;
+	}
+}
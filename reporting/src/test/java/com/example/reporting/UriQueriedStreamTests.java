@@ -0,0 +1,116 @@
+package com.example.reporting;
+
+import java.util.Arrays;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import org.springframework.util.unit.DataSize;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.assertj.core.groups.Tuple.tuple;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedStreamTests {
+
+	UriQueriedStream stream = new UriQueriedStream(properties(5), new SimpleMeterRegistry());
+
+	@Test
+	void should_only_stream_events_published_after_subscribing() {
+		this.stream.publish(Arrays.asList(event(1, 1000L)));
+
+		StepVerifier.create(this.stream.events(null, null, null, null).map(UriQueried::getId))
+				.then(() -> this.stream.publish(Arrays.asList(event(2, 2000L))))
+				.expectNext(id(2))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_resume_right_after_the_given_event() {
+		// the third one was stored late
+		this.stream.publish(Arrays.asList(event(1, 1000L), event(2, 3000L), event(3, 2000L)));
+
+		StepVerifier.create(this.stream.events(3000L, id(2), null, null).map(UriQueried::getId))
+				.expectNext(id(3))
+				.then(() -> this.stream.publish(Arrays.asList(event(4, 4000L))))
+				.expectNext(id(4))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_resume_in_timestamp_and_id_order_after_an_event_not_in_the_window() {
+		this.stream.publish(Arrays.asList(event(1, 1000L), event(3, 2000L), event(5, 2000L), event(6, 3000L)));
+
+		// e.g. streamed by another instance
+		StepVerifier.create(this.stream.events(2000L, id(4), null, null).map(UriQueried::getId))
+				.expectNext(id(5), id(6))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_filter_by_application_and_uri_prefix() {
+		this.stream.publish(Arrays.asList(event(1, "fraud-detection", "http://localhost:9080/frauds"),
+				event(2, "fraud-detection", "http://localhost:9080/filters/frauds"),
+				event(3, "loan-issuance", "http://localhost:9080/frauds")));
+
+		StepVerifier.create(this.stream.events(0L, id(0), "fraud-detection", "http://localhost:9080/frauds")
+				.map(UriQueried::getId))
+				.expectNext(id(1))
+				.thenCancel()
+				.verify();
+	}
+
+	@Test
+	void should_only_resume_from_events_still_in_the_window() {
+		for (int i = 1; i <= 7; i++) {
+			this.stream.publish(Arrays.asList(event(i, 1000L * i)));
+		}
+
+		StepVerifier.create(this.stream.events(1000L, id(1), null, null).map(UriQueried::getId))
+				.expectNext(id(3), id(4), id(5), id(6), id(7))
+				.thenCancel()
+				.verify();
+		then(this.stream.oldest()).isEqualTo(3000L);
+	}
+
+	@Test
+	void should_read_recent_events_back_from_the_window() {
+		this.stream.publish(Arrays.asList(new UriQueried("fraud-detection", 1000L, "http://localhost:9080/frauds"),
+				new UriQueried("loan-issuance", 2000L, "http://localhost:9081/loan"),
+				new UriQueried("fraud-detection", 3000L, "http://localhost:9080/frauds/marcin")));
+
+		then(this.stream.oldest()).isEqualTo(1000L);
+		then(this.stream.recent(2000L, "fraud-detection", null))
+				.extracting(UriQueried::getApplicationName, UriQueried::getTimestamp, UriQueried::getUri)
+				.containsExactly(tuple("fraud-detection", 3000L, "http://localhost:9080/frauds/marcin"));
+	}
+
+	private static EventStreamProperties properties(int events) {
+		EventStreamProperties properties = new EventStreamProperties();
+		properties.setMemoryBudget(DataSize.ofBytes(events * UriQueriedStream.ESTIMATED_BYTES_PER_EVENT));
+		return properties;
+	}
+
+	static UriQueried event(int id, long timestamp) {
+		UriQueried event = new UriQueried("fraud-detection", timestamp, "http://localhost:9080/frauds");
+		event.setId(id(id));
+		return event;
+	}
+
+	private static UriQueried event(int id, String applicationName, String uri) {
+		UriQueried event = new UriQueried(applicationName, System.currentTimeMillis(), uri);
+		event.setId(id(id));
+		return event;
+	}
+
+	static String id(int id) {
+		return String.format("%024x", id);
+	}
+}
@@ -0,0 +1,75 @@
+package com.example.reporting;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.BDDMockito;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+/**
+ * @author Marcin Grzejszczak
+ * @since
+ */
+class UriQueriedWriterTests {
+
+	UriQueriedReactiveRepository repository = BDDMockito.mock(UriQueriedReactiveRepository.class);
+
+	List<UriQueried> events = Arrays.asList(new UriQueried("fraud-detection", 1000L, "http://localhost:9080/frauds"),
+			new UriQueried("loan-issuance", 2000L, "http://localhost:9081/loan"));
+
+	AtomicInteger saves = new AtomicInteger();
+
+	SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	UriQueriedWriter writer = new UriQueriedWriter(this.repository, BDDMockito.mock(ReactiveMongoOperations.class),
+			properties(), this.meterRegistry);
+
+	@Test
+	void should_retry_a_failed_write_until_it_succeeds() {
+		failingTimes(2);
+
+		StepVerifier.create(this.writer.write(Flux.fromIterable(this.events)))
+				.expectNext(this.events)
+				.verifyComplete();
+
+		then(this.saves).hasValue(3);
+		then(this.meterRegistry.get("events.write.flush").tag("result", "failure").timer().count()).isEqualTo(2);
+		then(this.meterRegistry.get("events.write.backlog").gauge().value()).isZero();
+	}
+
+	@Test
+	void should_fail_once_the_retries_are_exhausted() {
+		failingTimes(Integer.MAX_VALUE);
+
+		StepVerifier.create(this.writer.write(Flux.fromIterable(this.events)))
+				.verifyErrorSatisfies(e -> then(e).hasMessageContaining("Retries exhausted").hasCauseInstanceOf(IllegalStateException.class));
+
+		then(this.saves).hasValue(4);
+		then(this.meterRegistry.get("events.write.backlog").gauge().value()).isZero();
+	}
+
+	private void failingTimes(int failures) {
+		BDDMockito.given(this.repository.saveAll(BDDMockito.<Iterable<UriQueried>>any()))
+				.willAnswer(invocation -> Flux.defer(() -> this.saves.incrementAndGet() <= failures
+						? Flux.error(new IllegalStateException("mongo is down"))
+						: Flux.fromIterable(invocation.<Iterable<UriQueried>>getArgument(0))));
+	}
+
+	private static EventWriteProperties properties() {
+		EventWriteProperties properties = new EventWriteProperties();
+		properties.setMaxSize(2);
+		properties.setRetryBackoff(Duration.ofMillis(1));
+		properties.setMaxRetryBackoff(Duration.ofMillis(1));
+		properties.setMaxRetries(3);
+		return properties;
+	}
+}